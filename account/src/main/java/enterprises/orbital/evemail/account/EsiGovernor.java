@@ -0,0 +1,172 @@
+package enterprises.orbital.evemail.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.invoker.ApiResponse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide governor for ESI requests.  ESI allows a fixed number of error responses per window and
+ * blocks clients which exceed it, reporting the remaining budget and seconds until the window resets in
+ * the X-ESI-Error-Limit-Remain and X-ESI-Error-Limit-Reset headers of every response.  All ESI calls
+ * should go through {@link #call(Priority, EsiCall)} so the governor can track those headers.
+ * <p>
+ * As the budget drains, background calls are first spaced out across the rest of the window, then held
+ * until the window resets.  Interactive calls are only held when the budget is nearly exhausted.
+ */
+public class EsiGovernor {
+  private static final Logger log = Logger.getLogger(EsiGovernor.class.getName());
+
+  public static final String HEADER_ERROR_LIMIT_REMAIN = "X-ESI-Error-Limit-Remain";
+  public static final String HEADER_ERROR_LIMIT_RESET = "X-ESI-Error-Limit-Reset";
+
+  // Background calls are spaced out below this remaining budget
+  public static final String PROP_ESI_BACKGROUND_SLOW = "enterprises.orbital.evemail.esiBackgroundSlow";
+  public static final long DEF_ESI_BACKGROUND_SLOW = 50L;
+  // Background calls are held until reset at or below this remaining budget
+  public static final String PROP_ESI_BACKGROUND_FLOOR = "enterprises.orbital.evemail.esiBackgroundFloor";
+  public static final long DEF_ESI_BACKGROUND_FLOOR = 20L;
+  // Interactive calls are held until reset at or below this remaining budget
+  public static final String PROP_ESI_INTERACTIVE_FLOOR = "enterprises.orbital.evemail.esiInteractiveFloor";
+  public static final long DEF_ESI_INTERACTIVE_FLOOR = 5L;
+
+  /**
+   * Call priority.  Interactive calls serve a waiting user (fetches, sends, logins); background calls are
+   * prefetches and periodic refreshes which can be delayed.
+   */
+  public enum Priority {
+    INTERACTIVE,
+    BACKGROUND
+  }
+
+  /**
+   * An ESI call which returns the full response, including headers.
+   */
+  @FunctionalInterface
+  public interface EsiCall<T> {
+    ApiResponse<T> call() throws ApiException;
+  }
+
+  private static final EsiGovernor instance = new EsiGovernor();
+
+  // Last reported budget and the time at which the window resets.  -1 until the first response.
+  private int remain = -1;
+  private long resetAt = 0;
+
+  public static EsiGovernor getInstance() {
+    return instance;
+  }
+
+  /**
+   * Run an ESI call, waiting first if the error budget requires it.
+   *
+   * @param priority priority of this call.
+   * @param call the call to run.
+   * @return the response payload.
+   * @throws ApiException if the ESI call failed.
+   */
+  public <T> T call(Priority priority, EsiCall<T> call) throws ApiException {
+    return exchange(priority, call).getData();
+  }
+
+  /**
+   * Run an ESI call, waiting first if the error budget requires it, and return the full response.
+   *
+   * @param priority priority of this call.
+   * @param call the call to run.
+   * @return the response, including headers.
+   * @throws ApiException if the ESI call failed.
+   */
+  public <T> ApiResponse<T> exchange(Priority priority, EsiCall<T> call) throws ApiException {
+    acquire(priority);
+    try {
+      ApiResponse<T> response = call.call();
+      update(response.getHeaders(), false);
+      return response;
+    } catch (ApiException e) {
+      update(e.getResponseHeaders(), e.getCode() == 420);
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until a call of the given priority may proceed.
+   *
+   * @param priority priority of the pending call.
+   * @throws ApiException if interrupted while waiting.
+   */
+  protected void acquire(Priority priority) throws ApiException {
+    long slow = OrbitalProperties.getLongGlobalProperty(PROP_ESI_BACKGROUND_SLOW, DEF_ESI_BACKGROUND_SLOW);
+    long floor = priority == Priority.INTERACTIVE ?
+        OrbitalProperties.getLongGlobalProperty(PROP_ESI_INTERACTIVE_FLOOR, DEF_ESI_INTERACTIVE_FLOOR) :
+        OrbitalProperties.getLongGlobalProperty(PROP_ESI_BACKGROUND_FLOOR, DEF_ESI_BACKGROUND_FLOOR);
+    try {
+      synchronized (this) {
+        while (true) {
+          long now = OrbitalProperties.getCurrentTime();
+          if (remain < 0 || now >= resetAt || remain > floor) break;
+          // Budget exhausted for this priority, hold until the window resets
+          wait(Math.max(1, resetAt - now));
+        }
+      }
+      if (priority == Priority.BACKGROUND) {
+        long delay;
+        synchronized (this) {
+          long now = OrbitalProperties.getCurrentTime();
+          // Spread the remaining background budget over the rest of the window
+          delay = remain >= 0 && remain < slow && now < resetAt ? (resetAt - now) / Math.max(1, remain - floor) : 0;
+        }
+        if (delay > 0) Thread.sleep(delay);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiException(e);
+    }
+  }
+
+  /**
+   * Record the error budget reported in a response.
+   *
+   * @param headers response headers, may be null.
+   * @param blocked true if ESI reported that this client is currently blocked.
+   */
+  protected void update(Map<String, List<String>> headers, boolean blocked) {
+    Integer newRemain = header(headers, HEADER_ERROR_LIMIT_REMAIN);
+    Integer newReset = header(headers, HEADER_ERROR_LIMIT_RESET);
+    if (blocked && newRemain == null) newRemain = 0;
+    if (newRemain == null) return;
+    long now = OrbitalProperties.getCurrentTime();
+    synchronized (this) {
+      remain = newRemain;
+      resetAt = now + (newReset == null ? 60L : newReset) * 1000L;
+      // Window may have reset or budget recovered, let waiters re-check
+      notifyAll();
+    }
+    if (blocked) log.warning("ESI error limit reached, calls held for " + (resetAt - now) + " ms");
+  }
+
+  private static Integer header(Map<String, List<String>> headers, String name) {
+    if (headers == null) return null;
+    for (Map.Entry<String, List<String>> next : headers.entrySet()) {
+      if (name.equalsIgnoreCase(next.getKey()) && next.getValue() != null && !next.getValue().isEmpty()) {
+        try {
+          return Integer.valueOf(next.getValue().get(0).trim());
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  public synchronized int getRemain() {
+    return remain;
+  }
+
+  public synchronized long getResetAt() {
+    return resetAt;
+  }
+}
@@ -12,9 +12,15 @@ import io.swagger.annotations.ApiModelProperty;
 
 import javax.persistence.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,7 +40,10 @@ import java.util.logging.Logger;
 @NamedQueries({
     @NamedQuery(
         name = "EveMailAccount.findByID",
-        query = "SELECT c FROM EveMailAccount c where c.characterID = :charid")
+        query = "SELECT c FROM EveMailAccount c where c.characterID = :charid"),
+    @NamedQuery(
+        name = "EveMailAccount.findRefreshCandidates",
+        query = "SELECT c FROM EveMailAccount c where c.accessTokenExpiry < :expiry and c.lastAccess > :active and c.refreshToken is not null")
 })
 @ApiModel(
     description = "EveMail Account")
@@ -43,6 +52,12 @@ import java.util.logging.Logger;
 })
 public class EveMailAccount implements UserAccount, PersistentPropertyKey<String> {
   protected static final Logger log = Logger.getLogger(EveMailAccount.class.getName());
+  public static final String PROP_ACCESS_FLUSH_INTERVAL = "enterprises.orbital.evemail.accessFlushInterval";
+  public static final long DEF_ACCESS_FLUSH_INTERVAL = 30000L;
+  public static final String PROP_ACCOUNT_CACHE_SIZE = "enterprises.orbital.evemail.accountCacheSize";
+  public static final long DEF_ACCOUNT_CACHE_SIZE = 10000L;
+  public static final String PROP_ACCOUNT_CACHE_TTL = "enterprises.orbital.evemail.accountCacheTTL";
+  public static final long DEF_ACCOUNT_CACHE_TTL = 60000L;
 
   // The character ID associated with this key.  This was the character used during OAuth authentication.
   // We also use character ID as the unique ID for the account, limiting each character to at most
@@ -280,7 +295,118 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
     return newAccount;
   }
 
+  // Read-through cache of account snapshots.  Entries expire after a TTL since accounts may also be
+  // modified by other processes (e.g. the account web service).
+  private static final class CachedAccount {
+    final EveMailAccount account;
+    final long expiry;
+
+    CachedAccount(EveMailAccount account, long expiry) {
+      this.account = account;
+      this.expiry = expiry;
+    }
+  }
+
+  private static final long accountCacheSize = OrbitalProperties.getLongGlobalProperty(PROP_ACCOUNT_CACHE_SIZE, DEF_ACCOUNT_CACHE_SIZE);
+  private static final Map<Integer, CachedAccount> accountCache = new LinkedHashMap<Integer, CachedAccount>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, CachedAccount> eldest) {
+      return size() > accountCacheSize;
+    }
+  };
+  // Invalidation counts, striped by character ID.  A load only fills the cache if no invalidation of its
+  // stripe happened while it was reading, so a read racing an update can't cache the old row.
+  private static final int INVALIDATION_STRIPES = 64;
+  private static final long[] invalidations = new long[INVALIDATION_STRIPES];
+  private static final AtomicLong accountCacheHits = new AtomicLong(0);
+  private static final AtomicLong accountCacheMisses = new AtomicLong(0);
+
+  // Detached copy so callers can't modify the cached snapshot
+  private EveMailAccount copy() {
+    EveMailAccount result = new EveMailAccount();
+    result.characterID = characterID;
+    result.admin = admin;
+    result.characterName = characterName;
+    result.corporationName = corporationName;
+    result.corporationID = corporationID;
+    result.accountPassword = accountPassword;
+    result.createDate = createDate;
+    result.lastAccess = lastAccess;
+    result.accessToken = accessToken;
+    result.accessTokenExpiry = accessTokenExpiry;
+    result.refreshToken = refreshToken;
+    result.valid = valid;
+    return result;
+  }
+
+  /**
+   * Discard any cached snapshot of the given account.
+   *
+   * @param charid character ID of the account.
+   */
+  public static void invalidateAccount(int charid) {
+    synchronized (accountCache) {
+      accountCache.remove(charid);
+      invalidations[stripe(charid)]++;
+    }
+  }
+
+  private static int stripe(int charid) {
+    return (charid & 0x7fffffff) % INVALIDATION_STRIPES;
+  }
+
+  public static long getAccountCacheHits() {
+    return accountCacheHits.get();
+  }
+
+  public static long getAccountCacheMisses() {
+    return accountCacheMisses.get();
+  }
+
+  public static double getAccountCacheHitRate() {
+    long hits = accountCacheHits.get();
+    long total = hits + accountCacheMisses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Retrieve an account, served from the account cache where possible.  The result is a snapshot:
+   * changes must be saved with {@link #update(EveMailAccount)}.
+   *
+   * @param charid character ID of the account.
+   * @return the account, or null if no such account exists.
+   */
   public static EveMailAccount getAccountByID(final int charid) {
+    long now = OrbitalProperties.getCurrentTime();
+    long generation;
+    synchronized (accountCache) {
+      CachedAccount cached = accountCache.get(charid);
+      if (cached != null && cached.expiry > now) {
+        accountCacheHits.incrementAndGet();
+        return applyPendingAccess(cached.account.copy());
+      }
+      generation = invalidations[stripe(charid)];
+    }
+    accountCacheMisses.incrementAndGet();
+    EveMailAccount result = loadAccountByID(charid);
+    if (result != null) {
+      long ttl = OrbitalProperties.getLongGlobalProperty(PROP_ACCOUNT_CACHE_TTL, DEF_ACCOUNT_CACHE_TTL);
+      synchronized (accountCache) {
+        // Skip caching if the account may have changed while we were reading it
+        if (invalidations[stripe(charid)] == generation)
+          accountCache.put(charid, new CachedAccount(result.copy(), now + ttl));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Retrieve an account directly from the database, bypassing the account cache.
+   *
+   * @param charid character ID of the account.
+   * @return the account, or null if no such account exists.
+   */
+  public static EveMailAccount loadAccountByID(final int charid) {
     try {
       return EveMailAccountProvider.getFactory()
                                    .runTransaction(() -> {
@@ -289,7 +415,7 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
                                                                                                .createNamedQuery("EveMailAccount.findByID", EveMailAccount.class);
                                      getter.setParameter("charid", charid);
                                      try {
-                                       return getter.getSingleResult();
+                                       return applyPendingAccess(getter.getSingleResult());
                                      } catch (NoResultException e) {
                                        return null;
                                      }
@@ -300,11 +426,36 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
     return null;
   }
 
+  /**
+   * Find accounts with a refresh token whose access token expires before the given time, and which have
+   * been accessed since the given time.
+   *
+   * @param expiry select tokens expiring before this time (millis UTC).
+   * @param active select accounts accessed after this time (millis UTC).
+   * @return matching accounts, or an empty list on error.
+   */
+  public static List<EveMailAccount> getRefreshCandidates(final long expiry, final long active) {
+    try {
+      return EveMailAccountProvider.getFactory()
+                                   .runTransaction(() -> {
+                                     TypedQuery<EveMailAccount> getter = EveMailAccountProvider.getFactory()
+                                                                                               .getEntityManager()
+                                                                                               .createNamedQuery("EveMailAccount.findRefreshCandidates", EveMailAccount.class);
+                                     getter.setParameter("expiry", expiry);
+                                     getter.setParameter("active", active);
+                                     return getter.getResultList();
+                                   });
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+    return Collections.emptyList();
+  }
+
   public static boolean deleteAccount(final int charid) {
     try {
       EveMailAccountProvider.getFactory()
                             .runTransaction(() -> {
-                              EveMailAccount account = getAccountByID(charid);
+                              EveMailAccount account = loadAccountByID(charid);
                               if (account != null) {
                                 for (EveMailAuthSource source : EveMailAuthSource.getAllSources(account))
                                   EveMailAccountProvider.getFactory().getEntityManager().remove(source);
@@ -315,6 +466,8 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
                                 // TODO: this should also log us out if successful
                               }
                             });
+      invalidateToken(charid);
+      invalidateAccount(charid);
       return true;
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
@@ -323,6 +476,7 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
   }
 
   public static EveMailAccount update(final EveMailAccount account) {
+    applyPendingAccess(account);
     try {
       return EveMailAccountProvider.getFactory()
                                    .runTransaction(() -> EveMailAccountProvider.getFactory()
@@ -331,18 +485,169 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
     } catch (Exception e) {
       log.log(Level.SEVERE, "query error", e);
       return null;
+    } finally {
+      // Invalidate once the merge has committed or failed, never before, so a concurrent miss can't
+      // cache the row we are replacing
+      invalidateAccount(account.getCharacterID());
+    }
+  }
+
+  // Last access times not yet written to the database.  Sign-ons are frequent, so rather than merging
+  // the whole account on every touch we coalesce access times here and flush them periodically.
+  private static final ConcurrentHashMap<Integer, Long> pendingAccess = new ConcurrentHashMap<>();
+  private static volatile ScheduledExecutorService accessFlusher;
+  // Accounts written per UPDATE statement when flushing access times
+  private static final int ACCESS_FLUSH_CHUNK = 100;
+
+  private static void startAccessFlusher() {
+    if (accessFlusher != null) return;
+    synchronized (pendingAccess) {
+      if (accessFlusher != null) return;
+      long interval = OrbitalProperties.getLongGlobalProperty(PROP_ACCESS_FLUSH_INTERVAL, DEF_ACCESS_FLUSH_INTERVAL);
+      ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "evemail-access-flush");
+        t.setDaemon(true);
+        return t;
+      });
+      flusher.scheduleWithFixedDelay(EveMailAccount::flushAccess, interval, interval, TimeUnit.MILLISECONDS);
+      Runtime.getRuntime().addShutdownHook(new Thread(EveMailAccount::flushAccess, "evemail-access-flush-shutdown"));
+      accessFlusher = flusher;
+    }
+  }
+
+  // Apply any newer unflushed access time to an account instance
+  private static EveMailAccount applyPendingAccess(EveMailAccount account) {
+    if (account != null) {
+      Long pending = pendingAccess.get(account.getCharacterID());
+      if (pending != null && pending > account.lastAccess) account.lastAccess = pending;
     }
+    return account;
+  }
+
+  /**
+   * Write all pending last access times to the database in a single transaction.  Entries which fail to
+   * write are retained for the next flush.
+   */
+  public static void flushAccess() {
+    if (pendingAccess.isEmpty()) return;
+    final Map<Integer, Long> batch = new HashMap<>(pendingAccess);
+    final List<Map.Entry<Integer, Long>> entries = new ArrayList<>(batch.entrySet());
+    try {
+      EveMailAccountProvider.getFactory()
+                            .runTransaction(() -> {
+                              EntityManager em = EveMailAccountProvider.getFactory()
+                                                                       .getEntityManager();
+                              for (int start = 0; start < entries.size(); start += ACCESS_FLUSH_CHUNK) {
+                                List<Map.Entry<Integer, Long>> chunk = entries.subList(start, Math.min(entries.size(), start + ACCESS_FLUSH_CHUNK));
+                                Query updater = em.createQuery(accessUpdate(chunk.size()));
+                                List<Integer> ids = new ArrayList<>(chunk.size());
+                                for (int i = 0; i < chunk.size(); i++) {
+                                  updater.setParameter("charid" + i, chunk.get(i).getKey());
+                                  updater.setParameter("access" + i, chunk.get(i).getValue());
+                                  ids.add(chunk.get(i).getKey());
+                                }
+                                updater.setParameter("charids", ids);
+                                updater.executeUpdate();
+                              }
+                            });
+      // Only discard entries which weren't touched again while we were flushing.  Carry the flushed time
+      // into any cached snapshot first so reads never fall back to an older lastAccess.
+      for (Map.Entry<Integer, Long> next : batch.entrySet()) {
+        synchronized (accountCache) {
+          CachedAccount cached = accountCache.get(next.getKey());
+          if (cached != null && cached.account.lastAccess < next.getValue()) cached.account.lastAccess = next.getValue();
+        }
+        pendingAccess.remove(next.getKey(), next.getValue());
+      }
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "query error", e);
+    }
+  }
+
+  // One statement updating the last access of several accounts, never moving an access time backwards
+  private static String accessUpdate(int count) {
+    StringBuilder query = new StringBuilder("UPDATE EveMailAccount c SET c.lastAccess = CASE");
+    for (int i = 0; i < count; i++) {
+      query.append(" WHEN c.characterID = :charid").append(i)
+           .append(" and c.lastAccess < :access").append(i)
+           .append(" THEN :access").append(i);
+    }
+    return query.append(" ELSE c.lastAccess END where c.characterID in :charids").toString();
   }
 
   public static EveMailAccount touch(EveMailAccount account) {
-    account.setLastAccess(OrbitalProperties.getCurrentTime());
-    return update(account);
+    long now = OrbitalProperties.getCurrentTime();
+    account.setLastAccess(now);
+    pendingAccess.merge(account.getCharacterID(), now, Math::max);
+    startAccessFlusher();
+    return account;
+  }
+
+  // Access tokens held in memory so valid tokens can be served without a database round trip.
+  // Holders are immutable and replaced on refresh.
+  private static final class TokenHolder {
+    final String accessToken;
+    final long expiry;
+
+    TokenHolder(String accessToken, long expiry) {
+      this.accessToken = accessToken;
+      this.expiry = expiry;
+    }
+  }
+
+  private static final ConcurrentHashMap<Integer, TokenHolder> tokenCache = new ConcurrentHashMap<>();
+
+  // In-flight refreshes.  Refreshing rotates the refresh token, so concurrent callers for the same
+  // character must share a single refresh rather than invalidating each other.
+  private static final ConcurrentHashMap<Integer, CompletableFuture<TokenHolder>> pendingRefresh = new ConcurrentHashMap<>();
+
+  /**
+   * Discard any in-memory access token for the given character.
+   *
+   * @param charid character ID of the account.
+   */
+  public static void invalidateToken(int charid) {
+    tokenCache.remove(charid);
   }
 
   public static String refresh(int charid, long expiryWindow)
       throws IOException {
-    // Find token
-    EveMailAccount account = EveMailAccount.getAccountByID(charid);
+    // Fast path: token held in memory and outside the expiry window
+    TokenHolder held = tokenCache.get(charid);
+    if (held != null && held.expiry - OrbitalProperties.getCurrentTime() >= expiryWindow) return held.accessToken;
+    // Slow path: exactly one caller per character loads or refreshes the token, the rest wait on its result
+    CompletableFuture<TokenHolder> mine = new CompletableFuture<>();
+    CompletableFuture<TokenHolder> pending = pendingRefresh.putIfAbsent(charid, mine);
+    if (pending == null) {
+      try {
+        TokenHolder result = loadToken(charid, expiryWindow);
+        tokenCache.put(charid, result);
+        mine.complete(result);
+      } catch (IOException | RuntimeException e) {
+        tokenCache.remove(charid);
+        mine.completeExceptionally(e);
+      } finally {
+        pendingRefresh.remove(charid, mine);
+      }
+      pending = mine;
+    }
+    try {
+      return pending.get().accessToken;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for token refresh for key: " + charid, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private static TokenHolder loadToken(int charid, long expiryWindow)
+      throws IOException {
+    // Find token.  Bypass the account cache since refreshing requires the current refresh token.
+    EveMailAccount account = EveMailAccount.loadAccountByID(charid);
     if (account == null) throw new IOException("No account with ID: " + charid);
     // Ensure the access token is valid, if not attempt to renew it
     if (account.getAccessTokenExpiry() - OrbitalProperties.getCurrentTime() < expiryWindow) {
@@ -365,7 +670,7 @@ public class EveMailAccount implements UserAccount, PersistentPropertyKey<String
       account = EveMailAccount.update(account);
       if (account == null) throw new IOException("Failed to save refreshed token for key: " + charid);
     }
-    return account.getAccessToken();
+    return new TokenHolder(account.getAccessToken(), account.getAccessTokenExpiry());
   }
 
 }
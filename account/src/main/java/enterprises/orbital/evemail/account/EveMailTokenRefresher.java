@@ -0,0 +1,100 @@
+package enterprises.orbital.evemail.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes access tokens for recently active accounts before they expire, so that foreground mail requests
+ * never have to wait on an SSO round trip.  Accounts are scanned periodically; each candidate is refreshed
+ * on a bounded pool after a random delay to spread SSO load.  Refreshes go through
+ * {@link EveMailAccount#refresh(int, long)} so they coalesce with any concurrent foreground refresh.
+ */
+public class EveMailTokenRefresher {
+  private static final Logger log = Logger.getLogger(EveMailTokenRefresher.class.getName());
+
+  // How often to scan for accounts needing a refresh
+  public static final String PROP_TOKEN_REFRESH_INTERVAL = "enterprises.orbital.evemail.tokenRefreshInterval";
+  public static final long DEF_TOKEN_REFRESH_INTERVAL = 60000L;
+  // Refresh tokens expiring within this lead time.  Must exceed the foreground token window.
+  public static final String PROP_TOKEN_REFRESH_LEAD = "enterprises.orbital.evemail.tokenRefreshLead";
+  public static final long DEF_TOKEN_REFRESH_LEAD = 5L * 60L * 1000L;
+  // Only refresh accounts accessed within this window
+  public static final String PROP_TOKEN_REFRESH_ACTIVE = "enterprises.orbital.evemail.tokenRefreshActive";
+  public static final long DEF_TOKEN_REFRESH_ACTIVE = 24L * 60L * 60L * 1000L;
+  public static final String PROP_TOKEN_REFRESH_CONCURRENCY = "enterprises.orbital.evemail.tokenRefreshConcurrency";
+  public static final long DEF_TOKEN_REFRESH_CONCURRENCY = 4L;
+  // Maximum random delay before each refresh
+  public static final String PROP_TOKEN_REFRESH_JITTER = "enterprises.orbital.evemail.tokenRefreshJitter";
+  public static final long DEF_TOKEN_REFRESH_JITTER = 30000L;
+
+  private static volatile EveMailTokenRefresher instance;
+
+  private final ScheduledExecutorService scanner;
+  private final ScheduledExecutorService workers;
+  private final Set<Integer> scheduled = ConcurrentHashMap.newKeySet();
+  private final long lead;
+  private final long active;
+  private final long jitter;
+
+  private EveMailTokenRefresher() {
+    long interval = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_REFRESH_INTERVAL, DEF_TOKEN_REFRESH_INTERVAL);
+    int concurrency = (int) OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_REFRESH_CONCURRENCY, DEF_TOKEN_REFRESH_CONCURRENCY);
+    lead = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_REFRESH_LEAD, DEF_TOKEN_REFRESH_LEAD);
+    active = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_REFRESH_ACTIVE, DEF_TOKEN_REFRESH_ACTIVE);
+    jitter = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_REFRESH_JITTER, DEF_TOKEN_REFRESH_JITTER);
+    final AtomicInteger count = new AtomicInteger(0);
+    scanner = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "evemail-token-scan");
+      t.setDaemon(true);
+      return t;
+    });
+    workers = Executors.newScheduledThreadPool(Math.max(1, concurrency), r -> {
+      Thread t = new Thread(r, "evemail-token-refresh-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    scanner.scheduleWithFixedDelay(this::scan, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start the shared refresher if it is not already running.
+   */
+  public static void start() {
+    if (instance == null) {
+      synchronized (EveMailTokenRefresher.class) {
+        if (instance == null) instance = new EveMailTokenRefresher();
+      }
+    }
+  }
+
+  protected void scan() {
+    try {
+      long now = OrbitalProperties.getCurrentTime();
+      for (EveMailAccount next : EveMailAccount.getRefreshCandidates(now + lead, now - active)) {
+        final int charid = next.getCharacterID();
+        // Skip accounts which still have a refresh queued from a previous scan
+        if (!scheduled.add(charid)) continue;
+        long delay = jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0;
+        workers.schedule(() -> refresh(charid), delay, TimeUnit.MILLISECONDS);
+      }
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Token refresh scan failed", e);
+    }
+  }
+
+  protected void refresh(int charid) {
+    try {
+      EveMailAccount.refresh(charid, lead);
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.WARNING, "Background token refresh failed for key: " + charid, e);
+    } finally {
+      scheduled.remove(charid);
+    }
+  }
+}
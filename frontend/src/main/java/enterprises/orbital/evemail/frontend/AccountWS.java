@@ -14,6 +14,7 @@ import enterprises.orbital.eve.esi.client.api.CorporationApi;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdOk;
 import enterprises.orbital.eve.esi.client.model.GetCorporationsCorporationIdOk;
+import enterprises.orbital.evemail.account.EsiGovernor;
 import enterprises.orbital.evemail.account.EveMailAccount;
 import enterprises.orbital.evemail.account.EveMailAccountProvider;
 import enterprises.orbital.evemail.account.EveMailAuthSource;
@@ -228,14 +229,17 @@ public class AccountWS {
         String corpName;
         int corpID;
         try {
+          EsiGovernor governor = EsiGovernor.getInstance();
           CharacterApi charApi = new CharacterApi();
-          GetCharactersCharacterIdOk charResult = charApi.getCharactersCharacterId(charID, "tranquility",
-                                                                                   null, null);
+          GetCharactersCharacterIdOk charResult = governor.call(EsiGovernor.Priority.INTERACTIVE,
+                                                                () -> charApi.getCharactersCharacterIdWithHttpInfo(charID, "tranquility",
+                                                                                                                   null, null));
           corpID = charResult.getCorporationId();
           CorporationApi corpApi = new CorporationApi();
-          GetCorporationsCorporationIdOk result = corpApi.getCorporationsCorporationId(charResult.getCorporationId(),
-                                                                                       "tranquility",
-                                                                                       null, null);
+          GetCorporationsCorporationIdOk result = governor.call(EsiGovernor.Priority.INTERACTIVE,
+                                                                () -> corpApi.getCorporationsCorporationIdWithHttpInfo(charResult.getCorporationId(),
+                                                                                                                       "tranquility",
+                                                                                                                       null, null));
           corpName = result.getCorporationName();
         } catch (ApiException e) {
           log.log(Level.SEVERE, "Exception while retrieving corporation information", e);
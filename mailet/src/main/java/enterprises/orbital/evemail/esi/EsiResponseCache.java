@@ -0,0 +1,175 @@
+package enterprises.orbital.evemail.esi;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.invoker.ApiClient;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.invoker.ApiResponse;
+import enterprises.orbital.eve.esi.client.invoker.Configuration;
+import enterprises.orbital.evemail.account.EsiGovernor;
+import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conditional request cache for ESI GETs.  Responses are cached by (endpoint, character, parameters)
+ * along with their ETag and Expires headers.  A cached response is served directly until it expires,
+ * after which the request is revalidated with If-None-Match and a 304 is served from the cached payload.
+ * Callers must treat cached payloads as read-only.
+ */
+public class EsiResponseCache {
+  public static final String PROP_ESI_CACHE_SIZE = "enterprises.orbital.evemail.esiCacheSize";
+  public static final long DEF_ESI_CACHE_SIZE = 10000L;
+
+  /**
+   * A conditional ESI call.  The call must use the supplied client, which carries the If-None-Match
+   * header when revalidating.
+   */
+  @FunctionalInterface
+  public interface ConditionalCall<T> {
+    ApiResponse<T> call(ApiClient client) throws ApiException;
+  }
+
+  private static class Entry {
+    final String etag;
+    final Object payload;
+    volatile long expires;
+
+    Entry(String etag, Object payload, long expires) {
+      this.etag = etag;
+      this.payload = payload;
+      this.expires = expires;
+    }
+  }
+
+  private static final EsiResponseCache instance = new EsiResponseCache(
+      (int) OrbitalProperties.getLongGlobalProperty(PROP_ESI_CACHE_SIZE, DEF_ESI_CACHE_SIZE));
+
+  // The generated client only supports request headers as client defaults, so each ESI thread gets its
+  // own client for conditional requests.
+  private static final ThreadLocal<ApiClient> conditionalClient = ThreadLocal.withInitial(EsiResponseCache::newConditionalClient);
+
+  private final Map<String, Entry> entries;
+
+  public EsiResponseCache(final int maxSize) {
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, EsiResponseCache.Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public static EsiResponseCache getInstance() {
+    return instance;
+  }
+
+  // Configured like the default client.  Sharing its HTTP client carries over timeouts and the connection pool.
+  private static ApiClient newConditionalClient() {
+    ApiClient defaults = Configuration.getDefaultApiClient();
+    ApiClient client = new ApiClient();
+    client.setBasePath(defaults.getBasePath());
+    client.setHttpClient(defaults.getHttpClient());
+    client.setUserAgent(OrbitalProperties.getGlobalProperty(InMemoryMailboxManager.PROP_USER_AGENT, InMemoryMailboxManager.DEF_USER_AGENT));
+    return client;
+  }
+
+  /**
+   * Build a cache key.
+   *
+   * @param endpoint endpoint name.
+   * @param characterID owning character, or 0 for public endpoints.
+   * @param params request parameters which distinguish responses.
+   * @return the cache key.
+   */
+  public static String key(String endpoint, int characterID, Object... params) {
+    StringBuilder key = new StringBuilder(endpoint).append('/').append(characterID);
+    for (Object next : params) key.append('/').append(next);
+    return key.toString();
+  }
+
+  /**
+   * Retrieve a response, from cache if still fresh, otherwise from ESI with revalidation.
+   *
+   * @param key cache key from {@link #key(String, int, Object...)}.
+   * @param priority governor priority for the request.
+   * @param call the request.
+   * @return the response payload.
+   * @throws ApiException if the request failed.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key, EsiGovernor.Priority priority, ConditionalCall<T> call) throws ApiException {
+    Entry cached;
+    synchronized (entries) {
+      cached = entries.get(key);
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    if (cached != null && now < cached.expires) return (T) cached.payload;
+    ApiClient client;
+    if (cached != null && cached.etag != null) {
+      client = conditionalClient.get();
+      client.addDefaultHeader("If-None-Match", cached.etag);
+    } else {
+      client = Configuration.getDefaultApiClient();
+    }
+    try {
+      ApiResponse<T> response = EsiGovernor.getInstance().exchange(priority, () -> call.call(client));
+      Map<String, List<String>> headers = response.getHeaders();
+      String etag = header(headers, "ETag");
+      long expires = expires(headers);
+      if (etag != null || expires > now) {
+        synchronized (entries) {
+          entries.put(key, new Entry(etag, response.getData(), expires));
+        }
+      }
+      return response.getData();
+    } catch (ApiException e) {
+      if (e.getCode() == 304 && cached != null) {
+        cached.expires = expires(e.getResponseHeaders());
+        return (T) cached.payload;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Discard cached responses for a character, e.g. after a change made through EveMail.
+   *
+   * @param characterID the character to invalidate.
+   */
+  public void invalidate(int characterID) {
+    String owner = String.valueOf(characterID);
+    synchronized (entries) {
+      entries.keySet().removeIf(k -> k.split("/", 3)[1].equals(owner));
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private static long expires(Map<String, List<String>> headers) {
+    String value = header(headers, "Expires");
+    if (value == null) return 0;
+    try {
+      return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return 0;
+    }
+  }
+
+  private static String header(Map<String, List<String>> headers, String name) {
+    if (headers == null) return null;
+    for (Map.Entry<String, List<String>> next : headers.entrySet()) {
+      if (name.equalsIgnoreCase(next.getKey()) && next.getValue() != null && !next.getValue().isEmpty())
+        return next.getValue().get(0);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,258 @@
+package enterprises.orbital.evemail.esi;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.api.*;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.*;
+import enterprises.orbital.evemail.account.EsiGovernor;
+import enterprises.orbital.evemail.account.EsiGovernor.Priority;
+import enterprises.orbital.evemail.account.EveMailAccount;
+import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade over the ESI endpoints used by EveMail (mail, labels, mailing lists, search and names).
+ * Calls are executed on a dedicated I/O pool so that callers can overlap network waits instead of pinning
+ * IMAP, POP or SMTP worker threads.  Blocking callers can use {@link #await(CompletableFuture)} which
+ * unwraps failures back to the exceptions thrown by the underlying ESI client.
+ * <p>
+ * Every call goes through the {@link EsiGovernor}.  Mail header, label and mailing list requests are
+ * also served through the {@link EsiResponseCache}.  Background calls run on a separate, smaller pool so
+ * that background calls held by the governor never occupy threads needed by interactive calls.
+ */
+public class EveAsyncClient {
+  public static final String PROP_ESI_THREADS = "enterprises.orbital.evemail.esiThreads";
+  public static final long DEF_ESI_THREADS = 16L;
+  public static final String PROP_ESI_BACKGROUND_THREADS = "enterprises.orbital.evemail.esiBackgroundThreads";
+  public static final long DEF_ESI_BACKGROUND_THREADS = 4L;
+
+  /**
+   * An ESI call which may fail with an API or token error.
+   */
+  @FunctionalInterface
+  public interface EsiCall<T> {
+    T call() throws ApiException, IOException;
+  }
+
+  private static volatile EveAsyncClient instance;
+
+  private final ExecutorService executor;
+  private final ExecutorService backgroundExecutor;
+  private final EsiGovernor governor = EsiGovernor.getInstance();
+  private final EsiResponseCache cache = EsiResponseCache.getInstance();
+  private final String userAgent;
+  private final long tokenWindow;
+
+  public EveAsyncClient(ExecutorService executor, ExecutorService backgroundExecutor, String userAgent,
+                        long tokenWindow) {
+    this.executor = executor;
+    this.backgroundExecutor = backgroundExecutor;
+    this.userAgent = userAgent;
+    this.tokenWindow = tokenWindow;
+  }
+
+  /**
+   * Retrieve the shared client, creating it from configured properties on first use.
+   *
+   * @return the process-wide ESI client.
+   */
+  public static EveAsyncClient getInstance() {
+    if (instance == null) {
+      synchronized (EveAsyncClient.class) {
+        if (instance == null) {
+          int threads = (int) OrbitalProperties.getLongGlobalProperty(PROP_ESI_THREADS, DEF_ESI_THREADS);
+          int backgroundThreads = (int) OrbitalProperties.getLongGlobalProperty(PROP_ESI_BACKGROUND_THREADS, DEF_ESI_BACKGROUND_THREADS);
+          instance = new EveAsyncClient(newPool("evemail-esi-", threads), newPool("evemail-esi-bg-", backgroundThreads),
+                                        OrbitalProperties.getGlobalProperty(InMemoryMailboxManager.PROP_USER_AGENT, InMemoryMailboxManager.DEF_USER_AGENT),
+                                        OrbitalProperties.getLongGlobalProperty(InMemoryMailboxManager.PROP_TOKEN_WINDOW, InMemoryMailboxManager.DEF_TOKEN_WINDOW));
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Replace the shared client, e.g. with one which doesn't reach ESI.
+   *
+   * @param client the client to share, or null to create one from configured properties on next use.
+   */
+  public static void setInstance(EveAsyncClient client) {
+    synchronized (EveAsyncClient.class) {
+      instance = client;
+    }
+  }
+
+  private static ExecutorService newPool(String prefix, int threads) {
+    final AtomicInteger count = new AtomicInteger(0);
+    return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+      Thread t = new Thread(r, prefix + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Wait for an ESI result on the calling thread.
+   *
+   * @param future the pending result.
+   * @return the result.
+   * @throws ApiException if the ESI call failed.
+   * @throws IOException if a token could not be retrieved or the wait was interrupted.
+   */
+  public static <T> T await(CompletableFuture<T> future) throws ApiException, IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for ESI", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ApiException) throw (ApiException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Run an arbitrary interactive ESI call on the I/O pool.  The call is responsible for going through
+   * the governor.
+   *
+   * @param call the call to run.
+   * @return a future which completes with the result of the call.
+   */
+  public <T> CompletableFuture<T> submit(EsiCall<T> call) {
+    return submit(Priority.INTERACTIVE, call);
+  }
+
+  /**
+   * Run an arbitrary ESI call on the I/O pool for the given priority.  The call is responsible for going
+   * through the governor.
+   *
+   * @param priority call priority.
+   * @param call the call to run.
+   * @return a future which completes with the result of the call.
+   */
+  public <T> CompletableFuture<T> submit(Priority priority, EsiCall<T> call) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    try {
+      (priority == Priority.BACKGROUND ? backgroundExecutor : executor).execute(() -> {
+        try {
+          result.complete(call.call());
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  public String getUserAgent() {
+    return userAgent;
+  }
+
+  protected String token(int characterID) throws IOException {
+    return EveMailAccount.refresh(characterID, tokenWindow);
+  }
+
+  public CompletableFuture<List<GetCharactersCharacterIdMail200Ok>> getMailHeaders(int characterID, List<Integer> labels,
+                                                                                   Integer lastMailID) {
+    return getMailHeaders(Priority.INTERACTIVE, characterID, labels, lastMailID);
+  }
+
+  public CompletableFuture<List<GetCharactersCharacterIdMail200Ok>> getMailHeaders(Priority priority, int characterID,
+                                                                                   List<Integer> labels,
+                                                                                   Integer lastMailID) {
+    return submit(priority, () -> {
+      String token = token(characterID);
+      return cache.get(EsiResponseCache.key("mail", characterID, labels, lastMailID), priority,
+                       client -> new MailApi(client).getCharactersCharacterIdMailWithHttpInfo(characterID, null, labels,
+                                                                                              lastMailID, token,
+                                                                                              userAgent, null));
+    });
+  }
+
+  public CompletableFuture<GetCharactersCharacterIdMailMailIdOk> getMailBody(int characterID, long mailID) {
+    return getMailBody(Priority.INTERACTIVE, characterID, mailID);
+  }
+
+  public CompletableFuture<GetCharactersCharacterIdMailMailIdOk> getMailBody(Priority priority, int characterID,
+                                                                             long mailID) {
+    return submit(priority, () -> {
+      String token = token(characterID);
+      return governor.call(priority, () -> new MailApi().getCharactersCharacterIdMailMailIdWithHttpInfo(characterID,
+                                                                                                        (int) mailID, null,
+                                                                                                        token, userAgent,
+                                                                                                        null));
+    });
+  }
+
+  public CompletableFuture<GetCharactersCharacterIdMailLabelsOk> getMailLabels(int characterID) {
+    return getMailLabels(Priority.INTERACTIVE, characterID);
+  }
+
+  public CompletableFuture<GetCharactersCharacterIdMailLabelsOk> getMailLabels(Priority priority, int characterID) {
+    return submit(priority, () -> {
+      String token = token(characterID);
+      return cache.get(EsiResponseCache.key("labels", characterID), priority,
+                       client -> new MailApi(client).getCharactersCharacterIdMailLabelsWithHttpInfo(characterID, null,
+                                                                                                    token, userAgent,
+                                                                                                    null));
+    });
+  }
+
+  public CompletableFuture<List<GetCharactersCharacterIdMailLists200Ok>> getMailingLists(int characterID) {
+    return getMailingLists(Priority.INTERACTIVE, characterID);
+  }
+
+  public CompletableFuture<List<GetCharactersCharacterIdMailLists200Ok>> getMailingLists(Priority priority,
+                                                                                         int characterID) {
+    return submit(priority, () -> {
+      String token = token(characterID);
+      return cache.get(EsiResponseCache.key("lists", characterID), priority,
+                       client -> new MailApi(client).getCharactersCharacterIdMailListsWithHttpInfo(characterID, null,
+                                                                                                   token, userAgent,
+                                                                                                   null));
+    });
+  }
+
+  public CompletableFuture<Integer> sendMail(int characterID, PostCharactersCharacterIdMailMail mail) {
+    return submit(() -> {
+      String token = token(characterID);
+      Integer result = governor.call(Priority.INTERACTIVE,
+                                     () -> new MailApi().postCharactersCharacterIdMailWithHttpInfo(characterID, mail, null,
+                                                                                                   token, userAgent, null));
+      // Sent mail shows up in the sender's mail and label counts
+      cache.invalidate(characterID);
+      return result;
+    });
+  }
+
+  public CompletableFuture<GetSearchOk> search(List<String> categories, String search, boolean strict) {
+    return submit(() -> governor.call(Priority.INTERACTIVE,
+                                      () -> new SearchApi().getSearchWithHttpInfo(categories, search, null, null, strict,
+                                                                                  userAgent, null)));
+  }
+
+  public CompletableFuture<List<GetCharactersNames200Ok>> getCharacterNames(List<Long> ids) {
+    return submit(() -> governor.call(Priority.INTERACTIVE,
+                                      () -> new CharacterApi().getCharactersNamesWithHttpInfo(ids, null, userAgent, null)));
+  }
+
+  public CompletableFuture<List<GetCorporationsNames200Ok>> getCorporationNames(List<Long> ids) {
+    return submit(() -> governor.call(Priority.INTERACTIVE,
+                                      () -> new CorporationApi().getCorporationsNamesWithHttpInfo(ids, null, userAgent,
+                                                                                                  null)));
+  }
+
+  public CompletableFuture<List<GetAlliancesNames200Ok>> getAllianceNames(List<Long> ids) {
+    return submit(() -> governor.call(Priority.INTERACTIVE,
+                                      () -> new AllianceApi().getAlliancesNamesWithHttpInfo(ids, null, userAgent, null)));
+  }
+}
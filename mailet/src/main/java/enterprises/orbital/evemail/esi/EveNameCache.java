@@ -0,0 +1,202 @@
+package enterprises.orbital.evemail.esi;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of EVE Online entity names.  Character, corporation and alliance names almost never
+ * change, so we keep a size bounded, least recently used cache with a TTL in both directions: ID to name
+ * for rendering mail headers, and name to ID for resolving outbound addresses.  Lookups which miss should
+ * be resolved against ESI by the caller and stored back with {@link #put(EntityType, long, String)}, or
+ * with {@link #putID(EntityType, String, long)} when only a typed name, not the canonical name, is known.
+ */
+public class EveNameCache {
+  public static final String PROP_NAME_CACHE_SIZE = "enterprises.orbital.evemail.nameCacheSize";
+  public static final long DEF_NAME_CACHE_SIZE = 100000L;
+  public static final String PROP_NAME_CACHE_TTL = "enterprises.orbital.evemail.nameCacheTTL";
+  public static final long DEF_NAME_CACHE_TTL = 24L * 60L * 60L * 1000L;
+
+  public enum EntityType {
+    CHARACTER,
+    CORPORATION,
+    ALLIANCE
+  }
+
+  private static class Key {
+    final EntityType type;
+    final Object value;
+
+    Key(EntityType type, Object value) {
+      this.type = type;
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return type == that.type && value.equals(that.value);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * type.hashCode() + value.hashCode();
+    }
+  }
+
+  private static class Entry {
+    final long id;
+    final String name;
+    final long expiry;
+
+    Entry(long id, String name, long expiry) {
+      this.id = id;
+      this.name = name;
+      this.expiry = expiry;
+    }
+  }
+
+  private static class BoundedMap extends LinkedHashMap<Key, Entry> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    BoundedMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, EveNameCache.Entry> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static volatile EveNameCache instance;
+
+  private final long ttl;
+  private final Map<Key, Entry> byID;
+  private final Map<Key, Entry> byName;
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  public EveNameCache(int maxSize, long ttl) {
+    this.ttl = ttl;
+    byID = new BoundedMap(maxSize);
+    byName = new BoundedMap(maxSize);
+  }
+
+  /**
+   * Retrieve the shared cache, creating it from configured properties on first use.
+   *
+   * @return the process-wide name cache.
+   */
+  public static EveNameCache getInstance() {
+    if (instance == null) {
+      synchronized (EveNameCache.class) {
+        if (instance == null) {
+          int maxSize = (int) OrbitalProperties.getLongGlobalProperty(PROP_NAME_CACHE_SIZE, DEF_NAME_CACHE_SIZE);
+          long ttl = OrbitalProperties.getLongGlobalProperty(PROP_NAME_CACHE_TTL, DEF_NAME_CACHE_TTL);
+          instance = new EveNameCache(maxSize, ttl);
+        }
+      }
+    }
+    return instance;
+  }
+
+  private static String normalize(String name) {
+    return name.trim().toLowerCase(Locale.ROOT);
+  }
+
+  private Entry lookup(Map<Key, Entry> map, Key key) {
+    Entry result;
+    synchronized (map) {
+      result = map.get(key);
+      if (result != null && result.expiry < OrbitalProperties.getCurrentTime()) {
+        map.remove(key);
+        result = null;
+      }
+    }
+    (result == null ? misses : hits).incrementAndGet();
+    return result;
+  }
+
+  /**
+   * Look up the name of an entity.
+   *
+   * @param type entity type.
+   * @param id entity ID.
+   * @return the cached name, or null if not cached or expired.
+   */
+  public String getName(EntityType type, long id) {
+    Entry result = lookup(byID, new Key(type, id));
+    return result == null ? null : result.name;
+  }
+
+  /**
+   * Look up the ID of an entity by name.  Names are matched case insensitively.
+   *
+   * @param type entity type.
+   * @param name entity name.
+   * @return the cached ID, or null if not cached or expired.
+   */
+  public Long getID(EntityType type, String name) {
+    Entry result = lookup(byName, new Key(type, normalize(name)));
+    return result == null ? null : result.id;
+  }
+
+  /**
+   * Record an ID to name mapping in both directions.
+   *
+   * @param type entity type.
+   * @param id entity ID.
+   * @param name entity name.
+   */
+  public void put(EntityType type, long id, String name) {
+    if (name == null) return;
+    Entry entry = new Entry(id, name, OrbitalProperties.getCurrentTime() + ttl);
+    synchronized (byID) {
+      byID.put(new Key(type, id), entry);
+    }
+    synchronized (byName) {
+      byName.put(new Key(type, normalize(name)), entry);
+    }
+  }
+
+  /**
+   * Record a name to ID mapping only.  Used for names typed by a user, which may differ in spacing or
+   * case from the canonical name and so must not be returned for the ID.
+   *
+   * @param type entity type.
+   * @param name entity name as typed.
+   * @param id entity ID.
+   */
+  public void putID(EntityType type, String name, long id) {
+    if (name == null) return;
+    Entry entry = new Entry(id, name, OrbitalProperties.getCurrentTime() + ttl);
+    synchronized (byName) {
+      byName.put(new Key(type, normalize(name)), entry);
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public void clear() {
+    synchronized (byID) {
+      byID.clear();
+    }
+    synchronized (byName) {
+      byName.clear();
+    }
+  }
+}
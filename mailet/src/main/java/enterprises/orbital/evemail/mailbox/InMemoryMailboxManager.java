@@ -23,6 +23,7 @@ import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.db.DBPropertyProvider;
 import enterprises.orbital.evemail.account.EveMailAccountProvider;
+import enterprises.orbital.evemail.account.EveMailTokenRefresher;
 import org.apache.james.mailbox.MailboxPathLocker;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.acl.GroupMembershipResolver;
@@ -55,9 +56,25 @@ public class InMemoryMailboxManager extends StoreMailboxManager {
     public static final String DEF_USER_AGENT = "EveMail/1.0.0 (https://evemail.orbital.enterprises; deadlybulb@orbital.enterprises; )";
     public static final String PROP_TOKEN_WINDOW = "enterprises.orbital.evemail.tokenWindow";
     public static final long DEF_TOKEN_WINDOW = 60000L;
+    public static final String PROP_SYNC_INTERVAL = "enterprises.orbital.evemail.syncInterval";
+    public static final long DEF_SYNC_INTERVAL = 60000L;
+    public static final String PROP_FULL_SYNC_INTERVAL = "enterprises.orbital.evemail.fullSyncInterval";
+    public static final long DEF_FULL_SYNC_INTERVAL = 3600000L;
+    // How UIDs are assigned to EVE mails: "log" records assignments in the local mailbox state log,
+    // "mailid" uses the EVE mail ID itself in INBOX, Sent, [Corp] and [Alliance] so nodes agree on them
+    // without shared storage.  User labels are recorded in the state log in either mode.
+    public static final String PROP_UID_MODE = "enterprises.orbital.evemail.uidMode";
+    public static final String UID_MODE_LOG = "log";
+    public static final String UID_MODE_MAIL_ID = "mailid";
+    public static final String DEF_UID_MODE = UID_MODE_LOG;
+    // Characters with no mailbox queries for this long have their cached mail released, 0 to never release
+    public static final String PROP_IDLE_RELEASE_INTERVAL = "enterprises.orbital.evemail.idleReleaseInterval";
+    public static final long DEF_IDLE_RELEASE_INTERVAL = 3600000L;
 
     protected static String userAgent;
     protected static long tokenWindow;
+    protected static long syncInterval = DEF_SYNC_INTERVAL;
+    protected static long fullSyncInterval = DEF_FULL_SYNC_INTERVAL;
 
     @Override
     @PostConstruct
@@ -65,12 +82,29 @@ public class InMemoryMailboxManager extends StoreMailboxManager {
         super.init();
         userAgent = OrbitalProperties.getGlobalProperty(PROP_USER_AGENT, DEF_USER_AGENT);
         tokenWindow = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_WINDOW, DEF_TOKEN_WINDOW);
+        syncInterval = OrbitalProperties.getLongGlobalProperty(PROP_SYNC_INTERVAL, DEF_SYNC_INTERVAL);
+        fullSyncInterval = OrbitalProperties.getLongGlobalProperty(PROP_FULL_SYNC_INTERVAL, DEF_FULL_SYNC_INTERVAL);
+        EveMailTokenRefresher.start();
     }
 
     public static String getUserAgent() { return userAgent; }
 
     public static long getTokenWindow() { return tokenWindow; }
 
+    public static long getSyncInterval() { return syncInterval; }
+
+    public static long getFullSyncInterval() { return fullSyncInterval; }
+
+    // Read directly as the mapper factory is built before init
+    public static boolean useMailIdUids() {
+        return UID_MODE_MAIL_ID.equalsIgnoreCase(OrbitalProperties.getGlobalProperty(PROP_UID_MODE, DEF_UID_MODE));
+    }
+
+    // Read directly as the mapper factory is built before init
+    public static long getIdleReleaseInterval() {
+        return OrbitalProperties.getLongGlobalProperty(PROP_IDLE_RELEASE_INTERVAL, DEF_IDLE_RELEASE_INTERVAL);
+    }
+
     @Inject
     public InMemoryMailboxManager(MailboxSessionMapperFactory mailboxSessionMapperFactory, Authenticator authenticator,
                                   Authorizator authorizator,
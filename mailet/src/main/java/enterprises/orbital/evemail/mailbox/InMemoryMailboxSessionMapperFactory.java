@@ -18,6 +18,7 @@
  ****************************************************************/
 package enterprises.orbital.evemail.mailbox;
 
+import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.evemail.mailbox.mail.*;
 import enterprises.orbital.evemail.mailbox.user.InMemorySubscriptionMapper;
 import org.apache.james.mailbox.MailboxSession;
@@ -27,27 +28,71 @@ import org.apache.james.mailbox.store.MailboxSessionMapperFactory;
 import org.apache.james.mailbox.store.mail.*;
 import org.apache.james.mailbox.store.user.SubscriptionMapper;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 public class InMemoryMailboxSessionMapperFactory extends MailboxSessionMapperFactory {
+    private static final Logger log = Logger.getLogger(InMemoryMailboxSessionMapperFactory.class.getName());
+    private static final ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "evemail-idle-release");
+        t.setDaemon(true);
+        return t;
+    });
 
     //private final MailboxMapper mailboxMapper;
     private final MessageMapper messageMapper;
     private final SubscriptionMapper subscriptionMapper;
     private final AttachmentMapper attachmentMapper;
     private final AnnotationMapper annotationMapper;
-    private final InMemoryUidProvider uidProvider;
-    private final InMemoryModSeqProvider modSeqProvider;
+    // UIDs, ModSeqs and mailbox identities survive restarts so clients keep their caches
+    private final UidProvider uidProvider;
+    private final ModSeqProvider modSeqProvider;
 
     private final ConcurrentHashMap<String, EveMailMailboxMapper> mailboxMapperMap = new ConcurrentHashMap<>();
+    // Per-user message mappers, shared with the user's mailbox mapper which tells them which label each mailbox reflects
+    private final ConcurrentHashMap<String, EveMailCachedMessageMapper> messageMapperMap = new ConcurrentHashMap<>();
 
     public InMemoryMailboxSessionMapperFactory() {
-        uidProvider = new InMemoryUidProvider();
-        modSeqProvider = new InMemoryModSeqProvider();
+        if (InMemoryMailboxManager.useMailIdUids()) {
+            uidProvider = new MailIdUidProvider(new PersistentUidProvider());
+            modSeqProvider = new ClockModSeqProvider();
+        } else {
+            uidProvider = new PersistentUidProvider();
+            modSeqProvider = new PersistentModSeqProvider();
+        }
         messageMapper = new InMemoryMessageMapper(null, uidProvider, modSeqProvider);
         subscriptionMapper = new InMemorySubscriptionMapper();
         attachmentMapper = new InMemoryAttachmentMapper();
         annotationMapper = new InMemoryAnnotationMapper();
+        long idle = InMemoryMailboxManager.getIdleReleaseInterval();
+        if (idle > 0)
+            releaser.scheduleWithFixedDelay(() -> releaseIdle(OrbitalProperties.getCurrentTime() - idle), idle, idle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Release the mappers of every user with no mailbox queries since the given time.  The mappers are
+     * only dropped from this factory: a session still holding them keeps its mailboxes and messages, and
+     * the character's header store is collected once no mapper or message refers to it.  The mailing list
+     * directory is dropped too, since it reloads on demand.  New sessions load the user afresh.
+     *
+     * @param cutoff users last queried before this time are released.
+     */
+    void releaseIdle(long cutoff) {
+        synchronized (mailboxMapperMap) {
+            synchronized (messageMapperMap) {
+                for (Map.Entry<String, EveMailCachedMessageMapper> next : messageMapperMap.entrySet()) {
+                    if (next.getValue().getLastAccess() >= cutoff) continue;
+                    log.fine("Releasing idle user " + next.getKey());
+                    mailboxMapperMap.remove(next.getKey());
+                    messageMapperMap.remove(next.getKey());
+                    EveMailingListDirectory.evict(next.getValue().getCharacterID());
+                }
+            }
+        }
     }
     
     @Override
@@ -58,7 +103,7 @@ public class InMemoryMailboxSessionMapperFactory extends MailboxSessionMapperFac
             synchronized (mailboxMapperMap) {
                 mapper = mailboxMapperMap.get(session.getUser().getUserName());
                 if (mapper == null) {
-                    EveMailMailboxMapper newMapper = new EveMailMailboxMapper(session.getUser());
+                    EveMailMailboxMapper newMapper = new EveMailMailboxMapper(session.getUser(), getEveMessageMapper(session));
                     mailboxMapperMap.put(session.getUser().getUserName(), newMapper);
                     mapper = newMapper;
                 }
@@ -69,7 +114,22 @@ public class InMemoryMailboxSessionMapperFactory extends MailboxSessionMapperFac
 
     @Override
     public MessageMapper createMessageMapper(MailboxSession session) throws MailboxException {
-        return messageMapper;
+        if (session.getUser() == null) return messageMapper;
+        return getEveMessageMapper(session);
+    }
+
+    private EveMailCachedMessageMapper getEveMessageMapper(MailboxSession session) throws MailboxException {
+        EveMailCachedMessageMapper mapper = messageMapperMap.get(session.getUser().getUserName());
+        if (mapper == null) {
+            synchronized (messageMapperMap) {
+                mapper = messageMapperMap.get(session.getUser().getUserName());
+                if (mapper == null) {
+                    mapper = new EveMailCachedMessageMapper(session, uidProvider, modSeqProvider);
+                    messageMapperMap.put(session.getUser().getUserName(), mapper);
+                }
+            }
+        }
+        return mapper;
     }
 
     @Override
@@ -90,6 +150,8 @@ public class InMemoryMailboxSessionMapperFactory extends MailboxSessionMapperFac
     public void deleteAll() throws MailboxException {
         for (EveMailMailboxMapper mapper : mailboxMapperMap.values())
             mapper.deleteAll();
+        for (EveMailCachedMessageMapper mapper : messageMapperMap.values())
+            mapper.deleteAll();
         ((InMemoryMessageMapper) messageMapper).deleteAll();
         ((InMemorySubscriptionMapper) subscriptionMapper).deleteAll();
     }
@@ -0,0 +1,48 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.store.mail.ModSeqProvider;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ModSeq provider which never lets a ModSeq fall behind the current time in milliseconds.  HIGHESTMODSEQ
+ * therefore keeps increasing across restarts and nodes without shared or persistent state, provided
+ * node clocks are reasonably in step.
+ */
+public class ClockModSeqProvider implements ModSeqProvider {
+    private final ConcurrentMap<InMemoryId, AtomicLong> map = new ConcurrentHashMap<InMemoryId, AtomicLong>();
+
+    @Override
+    public long nextModSeq(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return nextModSeq(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public long nextModSeq(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        long now = OrbitalProperties.getCurrentTime();
+        return getHighest((InMemoryId) mailboxId).updateAndGet(v -> Math.max(v + 1, now));
+    }
+
+    @Override
+    public long highestModSeq(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return highestModSeq(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public long highestModSeq(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        return getHighest((InMemoryId) mailboxId).get();
+    }
+
+    private AtomicLong getHighest(InMemoryId id) {
+        // Start from the current time, which is past anything reported before a restart
+        return map.computeIfAbsent(id, k -> new AtomicLong(OrbitalProperties.getCurrentTime()));
+    }
+}
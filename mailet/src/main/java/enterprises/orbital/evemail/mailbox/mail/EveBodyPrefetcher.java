@@ -0,0 +1,84 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches message bodies for a FETCH range in parallel before the results are returned to the protocol
+ * layer.  All prefetches share a single bounded pool so total concurrency against ESI stays under the
+ * configured limit regardless of how many sessions are fetching at once.  Prefetches run at interactive
+ * priority since the FETCH which triggered them is waiting on the results.
+ */
+public class EveBodyPrefetcher {
+  private static final Logger log = Logger.getLogger(EveBodyPrefetcher.class.getName());
+
+  public static final String PROP_PREFETCH_CONCURRENCY = "enterprises.orbital.evemail.prefetchConcurrency";
+  public static final long DEF_PREFETCH_CONCURRENCY = 4L;
+  public static final String PROP_PREFETCH_TIMEOUT = "enterprises.orbital.evemail.prefetchTimeout";
+  public static final long DEF_PREFETCH_TIMEOUT = 30000L;
+
+  private static volatile ExecutorService executor;
+
+  private static ExecutorService getExecutor() {
+    if (executor == null) {
+      synchronized (EveBodyPrefetcher.class) {
+        if (executor == null) {
+          int concurrency = (int) OrbitalProperties.getLongGlobalProperty(PROP_PREFETCH_CONCURRENCY, DEF_PREFETCH_CONCURRENCY);
+          final AtomicInteger count = new AtomicInteger(0);
+          executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread t = new Thread(r, "evemail-prefetch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          });
+        }
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Retrieve the body of every message which does not already have one.  Returns when all bodies have
+   * been retrieved, or the prefetch timeout expires.  Failures are logged and otherwise ignored: the
+   * message will attempt retrieval again when its content is read.
+   *
+   * @param messages messages to prefetch.
+   */
+  public static void prefetch(Collection<? extends EveMessage> messages) {
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (final EveMessage next : messages) {
+      if (next.hasBody()) continue;
+      tasks.add(() -> {
+        try {
+          next.prefetchBody();
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Failed to prefetch body for message " + next.messageID, e);
+        }
+        return null;
+      });
+    }
+    if (tasks.isEmpty()) return;
+    // A single missing body is cheaper to fetch on the calling thread
+    if (tasks.size() == 1) {
+      try {
+        tasks.get(0).call();
+      } catch (Exception e) {
+        // Logged in task
+      }
+      return;
+    }
+    try {
+      long timeout = OrbitalProperties.getLongGlobalProperty(PROP_PREFETCH_TIMEOUT, DEF_PREFETCH_TIMEOUT);
+      getExecutor().invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local, append-only store of EVE mail bodies keyed by (characterID, mailID).  EVE mail bodies never change
+ * once sent, so a body retrieved once can be served locally across restarts and mapper rebuilds.
+ * <p>
+ * Bodies are appended to fixed size segment files.  Sealed segments are immutable and read through
+ * memory maps; the active segment is read with positional reads.  Every append is also recorded in an
+ * index file which is replayed on startup.  When the total size of all segments exceeds the configured
+ * cap, the oldest segment is deleted along with its index entries.
+ */
+public class EveBodyStore {
+  private static final Logger log = Logger.getLogger(EveBodyStore.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public static final String PROP_BODY_STORE_DIR = "enterprises.orbital.evemail.bodyStoreDir";
+  public static final String DEF_BODY_STORE_DIR = "var/evemail/bodies";
+  public static final String PROP_BODY_STORE_MAX_SIZE = "enterprises.orbital.evemail.bodyStoreMaxSize";
+  public static final long DEF_BODY_STORE_MAX_SIZE = 1024L * 1024L * 1024L;
+  public static final String PROP_BODY_STORE_SEGMENT_SIZE = "enterprises.orbital.evemail.bodyStoreSegmentSize";
+  public static final long DEF_BODY_STORE_SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+  private static final String INDEX_FILE = "bodies.idx";
+  private static final String SEGMENT_PREFIX = "bodies-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  // characterID, mailID, segment, offset, length
+  private static final int INDEX_RECORD_SIZE = 4 + 8 + 4 + 8 + 4;
+
+  // Delay before retrying a store which failed to open, doubled on each further failure up to the max delay
+  private static final long OPEN_RETRY_DELAY = 60L * 1000L;
+  private static final long MAX_OPEN_RETRY_DELAY = 60L * 60L * 1000L;
+
+  private static volatile EveBodyStore instance;
+  private static long openRetryAt;
+  private static long openRetryDelay = OPEN_RETRY_DELAY;
+
+  private static class Location {
+    final int segment;
+    final long offset;
+    final int length;
+
+    Location(int segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final File dir;
+  private final long maxSize;
+  private final long segmentSize;
+  private final Map<Long, Location> index = new ConcurrentHashMap<>();
+  private final Map<Integer, MappedByteBuffer> sealed = new ConcurrentHashMap<>();
+  private final TreeMap<Integer, Long> segmentSizes = new TreeMap<>();
+  private DataOutputStream indexOut;
+  private FileChannel active;
+  private int activeSegment;
+
+  /**
+   * Retrieve the shared body store, opening it on first use.
+   *
+   * @return the body store, or null if the store could not be opened.  Opening is not retried until the
+   * backoff from the last failure has passed.
+   */
+  public static EveBodyStore getInstance() {
+    if (instance == null) {
+      synchronized (EveBodyStore.class) {
+        if (instance == null && System.currentTimeMillis() >= openRetryAt) {
+          File dir = new File(OrbitalProperties.getGlobalProperty(PROP_BODY_STORE_DIR, DEF_BODY_STORE_DIR));
+          long maxSize = OrbitalProperties.getLongGlobalProperty(PROP_BODY_STORE_MAX_SIZE, DEF_BODY_STORE_MAX_SIZE);
+          long segmentSize = OrbitalProperties.getLongGlobalProperty(PROP_BODY_STORE_SEGMENT_SIZE, DEF_BODY_STORE_SEGMENT_SIZE);
+          try {
+            instance = new EveBodyStore(dir, maxSize, segmentSize);
+          } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to open body store at " + dir + ", bodies will not be cached for "
+                + openRetryDelay / 1000 + " seconds", e);
+            openRetryAt = System.currentTimeMillis() + openRetryDelay;
+            openRetryDelay = Math.min(openRetryDelay * 2, MAX_OPEN_RETRY_DELAY);
+            return null;
+          }
+        }
+      }
+    }
+    return instance;
+  }
+
+  public EveBodyStore(File dir, long maxSize, long segmentSize) throws IOException {
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create body store directory " + dir);
+    load();
+  }
+
+  private static long key(int characterID, long mailID) {
+    return ((long) characterID << 32) | (mailID & 0xFFFFFFFFL);
+  }
+
+  private File segmentFile(int segment) {
+    return new File(dir, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Discover existing segments and replay the index.  The index is rewritten without entries for evicted
+   * segments or incomplete appends.
+   */
+  private synchronized void load() throws IOException {
+    File[] existing = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (existing != null) {
+      for (File next : existing) {
+        String name = next.getName();
+        if (next.length() == 0) {
+          // Unused active segment from a previous run
+          if (!next.delete()) log.warning("Unable to delete empty body segment " + next);
+          continue;
+        }
+        try {
+          int segment = Integer.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          segmentSizes.put(segment, next.length());
+        } catch (NumberFormatException e) {
+          log.warning("Ignoring unexpected file in body store: " + next);
+        }
+      }
+    }
+
+    File indexFile = new File(dir, INDEX_FILE);
+    if (indexFile.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        while (true) {
+          int characterID = in.readInt();
+          long mailID = in.readLong();
+          int segment = in.readInt();
+          long offset = in.readLong();
+          int length = in.readInt();
+          Long size = segmentSizes.get(segment);
+          if (size != null && offset + length <= size)
+            index.put(key(characterID, mailID), new Location(segment, offset, length));
+        }
+      } catch (EOFException e) {
+        // End of index, a partial trailing record is discarded
+      }
+    }
+
+    // Compact the index to live entries
+    File compacted = new File(dir, INDEX_FILE + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(compacted);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+      for (Map.Entry<Long, Location> next : index.entrySet()) {
+        writeIndex(out, next.getKey(), next.getValue());
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(compacted.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true), INDEX_RECORD_SIZE * 64));
+
+    // Seal every existing segment and start a fresh active segment
+    for (int segment : segmentSizes.keySet()) seal(segment);
+    activeSegment = segmentSizes.isEmpty() ? 0 : segmentSizes.lastKey() + 1;
+    openActive();
+  }
+
+  private static void writeIndex(DataOutputStream out, long key, Location loc) throws IOException {
+    out.writeInt((int) (key >>> 32));
+    out.writeLong(key & 0xFFFFFFFFL);
+    out.writeInt(loc.segment);
+    out.writeLong(loc.offset);
+    out.writeInt(loc.length);
+  }
+
+  private void seal(int segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ)) {
+      sealed.put(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  private void openActive() throws IOException {
+    active = FileChannel.open(segmentFile(activeSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                              StandardOpenOption.WRITE);
+    segmentSizes.put(activeSegment, active.size());
+  }
+
+  /**
+   * Retrieve a stored body.
+   *
+   * @param characterID owner of the mail.
+   * @param mailID EVE mail ID.
+   * @return the body, or null if it is not stored.
+   */
+  public String get(int characterID, long mailID) {
+    Location loc = index.get(key(characterID, mailID));
+    if (loc == null) return null;
+    byte[] data = new byte[loc.length];
+    MappedByteBuffer map = sealed.get(loc.segment);
+    try {
+      if (map != null) {
+        ByteBuffer view = map.duplicate();
+        view.position((int) loc.offset);
+        view.get(data);
+      } else {
+        FileChannel channel;
+        synchronized (this) {
+          if (loc.segment != activeSegment) return null;
+          channel = active;
+        }
+        ByteBuffer target = ByteBuffer.wrap(data);
+        long position = loc.offset;
+        while (target.hasRemaining()) {
+          int count = channel.read(target, position);
+          if (count < 0) return null;
+          position += count;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // Segment evicted or truncated underneath us, treat as a miss
+      log.log(Level.FINE, "Failed to read stored body for " + characterID + "/" + mailID, e);
+      return null;
+    }
+    return new String(data, UTF_8);
+  }
+
+  /**
+   * Store a body.  Bodies already stored are ignored.
+   *
+   * @param characterID owner of the mail.
+   * @param mailID EVE mail ID.
+   * @param body mail body.
+   */
+  public synchronized void put(int characterID, long mailID, String body) {
+    long key = key(characterID, mailID);
+    if (body == null || index.containsKey(key)) return;
+    byte[] data = body.getBytes(UTF_8);
+    try {
+      long offset = segmentSizes.get(activeSegment);
+      if (offset > 0 && offset + data.length > segmentSize) {
+        roll();
+        offset = 0;
+      }
+      ByteBuffer source = ByteBuffer.wrap(data);
+      while (source.hasRemaining()) active.write(source, offset + source.position());
+      Location loc = new Location(activeSegment, offset, data.length);
+      segmentSizes.put(activeSegment, offset + data.length);
+      writeIndex(indexOut, key, loc);
+      indexOut.flush();
+      index.put(key, loc);
+      evict();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to store body for " + characterID + "/" + mailID, e);
+    }
+  }
+
+  private void roll() throws IOException {
+    active.force(false);
+    active.close();
+    seal(activeSegment);
+    activeSegment++;
+    openActive();
+  }
+
+  /**
+   * Delete the oldest sealed segments until the store is under its size cap.
+   */
+  private void evict() {
+    long total = 0;
+    for (long size : segmentSizes.values()) total += size;
+    while (total > maxSize && segmentSizes.firstKey() != activeSegment) {
+      int oldest = segmentSizes.firstKey();
+      total -= segmentSizes.remove(oldest);
+      index.values().removeIf(loc -> loc.segment == oldest);
+      sealed.remove(oldest);
+      if (!segmentFile(oldest).delete()) log.warning("Unable to delete evicted body segment " + oldest);
+    }
+  }
+
+  public int size() {
+    return index.size();
+  }
+}
@@ -0,0 +1,249 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMail200Ok;
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMailRecipient;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact columnar store of the mail headers of a single character.  Each header is a row of
+ * primitive columns (mail ID, timestamp, sender) with recipients and labels held in shared int pools
+ * and subjects held UTF-8 encoded in off-heap buffers.  Names are not stored, see
+ * {@link EveNameDictionary}.  A mail appearing under several labels is stored once.  Flags are not
+ * stored either, since each mailbox showing a mail has its own, see {@link EveMailboxMessage}.
+ * <p>
+ * Rows are never removed, since a mail deleted in game costs only a few dozen bytes.  Instead stores are
+ * only weakly held here: each message mapper and message holds its character's store, and once the
+ * mappers of an idle character are released and none of its messages remain, the store is collected.
+ * All access is synchronized on the store.
+ */
+public class EveHeaderStore {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int INITIAL_ROWS = 64;
+  // Subject chunks start small so idle users with little mail stay cheap, and double up to the max
+  private static final int MIN_SUBJECT_CHUNK_SIZE = 4 * 1024;
+  private static final int MAX_SUBJECT_CHUNK_SIZE = 64 * 1024;
+
+  private static final Map<Integer, WeakReference<EveHeaderStore>> stores = new HashMap<>();
+
+  // Row columns
+  private long[] mailIDs = new long[INITIAL_ROWS];
+  private long[] timestamps = new long[INITIAL_ROWS];
+  private int[] senders = new int[INITIAL_ROWS];
+  private int[] recipientStart = new int[INITIAL_ROWS];
+  private int[] labelStart = new int[INITIAL_ROWS];
+  private int[] labelLength = new int[INITIAL_ROWS];
+  private int[] subjectChunk = new int[INITIAL_ROWS];
+  private int[] subjectOffset = new int[INITIAL_ROWS];
+  private int[] subjectLength = new int[INITIAL_ROWS];
+  private int rows = 0;
+
+  // Recipients of row r occupy [recipientStart[r], recipientStart[r + 1]) (or the pool end for the last row).
+  // Labels can change, so each row records its own label range.  A label list which outgrows its range
+  // moves to the end of the pool.
+  private int[] recipientIDs = new int[INITIAL_ROWS * 2];
+  private byte[] recipientTypes = new byte[INITIAL_ROWS * 2];
+  private int recipientCount = 0;
+  private int[] labels = new int[INITIAL_ROWS];
+  private int labelCount = 0;
+
+  private final List<ByteBuffer> subjectChunks = new ArrayList<>();
+
+  // Open addressing index from mail ID to row
+  private long[] indexKeys = new long[INITIAL_ROWS * 2];
+  private int[] indexRows = new int[INITIAL_ROWS * 2];
+
+  /**
+   * Retrieve the header store for a character.
+   *
+   * @param characterID the character which owns the headers.
+   * @return the store for this character.
+   */
+  public static EveHeaderStore forCharacter(int characterID) {
+    synchronized (stores) {
+      WeakReference<EveHeaderStore> ref = stores.get(characterID);
+      EveHeaderStore store = ref == null ? null : ref.get();
+      if (store == null) {
+        // New stores are rare (one per character login), so this is a good time to drop collected ones
+        stores.values().removeIf(next -> next.get() == null);
+        store = new EveHeaderStore();
+        stores.put(characterID, new WeakReference<>(store));
+      }
+      return store;
+    }
+  }
+
+  /**
+   * Stop handing out the current header store for a character, e.g. when the character account is
+   * removed.  Existing holders keep using it, later lookups get a new store.
+   *
+   * @param characterID the character to evict.
+   */
+  public static void evict(int characterID) {
+    synchronized (stores) {
+      stores.remove(characterID);
+    }
+  }
+
+  /**
+   * Add a header.  If a header with the same mail ID is already stored, the columns EVE may change (the
+   * labels) are updated from the newer header instead.
+   *
+   * @param header the header to add.
+   * @return the row holding this mail.
+   */
+  public synchronized int add(GetCharactersCharacterIdMail200Ok header) {
+    long mailID = header.getMailId();
+    int existing = find(mailID);
+    if (existing >= 0) {
+      setLabels(existing, header.getLabels());
+      return existing;
+    }
+    if (rows == mailIDs.length) growRows();
+    int row = rows;
+    mailIDs[row] = mailID;
+    timestamps[row] = header.getTimestamp().getMillis();
+    senders[row] = header.getFrom();
+
+    recipientStart[row] = recipientCount;
+    for (GetCharactersCharacterIdMailRecipient next : header.getRecipients()) {
+      if (recipientCount == recipientIDs.length) {
+        recipientIDs = Arrays.copyOf(recipientIDs, recipientCount * 2);
+        recipientTypes = Arrays.copyOf(recipientTypes, recipientCount * 2);
+      }
+      recipientIDs[recipientCount] = next.getRecipientId();
+      recipientTypes[recipientCount] = (byte) EveMessage.EveRecipientType.mapApiToType(next.getRecipientType()).ordinal();
+      recipientCount++;
+    }
+
+    labelLength[row] = 0;
+    setLabels(row, header.getLabels());
+
+    byte[] subject = header.getSubject() == null ? new byte[0] : header.getSubject().getBytes(UTF_8);
+    ByteBuffer chunk = subjectChunks.isEmpty() ? null : subjectChunks.get(subjectChunks.size() - 1);
+    if (chunk == null || chunk.remaining() < subject.length) {
+      int size = chunk == null ? MIN_SUBJECT_CHUNK_SIZE : Math.min(MAX_SUBJECT_CHUNK_SIZE, chunk.capacity() * 2);
+      chunk = ByteBuffer.allocateDirect(Math.max(size, subject.length));
+      subjectChunks.add(chunk);
+    }
+    subjectChunk[row] = subjectChunks.size() - 1;
+    subjectOffset[row] = chunk.position();
+    subjectLength[row] = subject.length;
+    chunk.put(subject);
+
+    rows++;
+    index(mailID, row);
+    return row;
+  }
+
+  private void setLabels(int row, List<Integer> update) {
+    int count = update == null ? 0 : update.size();
+    if (count > labelLength[row]) {
+      labelStart[row] = labelCount;
+      if (labelCount + count > labels.length) labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelCount + count));
+      labelCount += count;
+    }
+    for (int i = 0; i < count; i++) labels[labelStart[row] + i] = update.get(i);
+    labelLength[row] = count;
+  }
+
+  private void growRows() {
+    int size = rows * 2;
+    mailIDs = Arrays.copyOf(mailIDs, size);
+    timestamps = Arrays.copyOf(timestamps, size);
+    senders = Arrays.copyOf(senders, size);
+    recipientStart = Arrays.copyOf(recipientStart, size);
+    labelStart = Arrays.copyOf(labelStart, size);
+    labelLength = Arrays.copyOf(labelLength, size);
+    subjectChunk = Arrays.copyOf(subjectChunk, size);
+    subjectOffset = Arrays.copyOf(subjectOffset, size);
+    subjectLength = Arrays.copyOf(subjectLength, size);
+  }
+
+  private static int slot(long key, int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private int find(long mailID) {
+    int mask = indexKeys.length - 1;
+    for (int i = slot(mailID, mask); indexRows[i] != 0; i = (i + 1) & mask) {
+      if (indexKeys[i] == mailID) return indexRows[i] - 1;
+    }
+    return -1;
+  }
+
+  private void index(long mailID, int row) {
+    // Keep the table at most half full
+    if (rows * 2 > indexKeys.length) {
+      long[] oldKeys = indexKeys;
+      int[] oldRows = indexRows;
+      indexKeys = new long[oldKeys.length * 2];
+      indexRows = new int[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldRows[i] != 0) put(oldKeys[i], oldRows[i]);
+      }
+    }
+    // Rows are stored off by one so zero marks an empty slot
+    put(mailID, row + 1);
+  }
+
+  private void put(long key, int value) {
+    int mask = indexKeys.length - 1;
+    int i = slot(key, mask);
+    while (indexRows[i] != 0) i = (i + 1) & mask;
+    indexKeys[i] = key;
+    indexRows[i] = value;
+  }
+
+  public synchronized int size() {
+    return rows;
+  }
+
+  public synchronized long getMailID(int row) {
+    return mailIDs[row];
+  }
+
+  public synchronized long getTimestamp(int row) {
+    return timestamps[row];
+  }
+
+  public synchronized int getSender(int row) {
+    return senders[row];
+  }
+
+  public synchronized String getSubject(int row) {
+    byte[] data = new byte[subjectLength[row]];
+    ByteBuffer view = subjectChunks.get(subjectChunk[row]).duplicate();
+    view.position(subjectOffset[row]);
+    view.get(data);
+    return new String(data, UTF_8);
+  }
+
+  private int end(int[] start, int row, int poolEnd) {
+    return row + 1 < rows ? start[row + 1] : poolEnd;
+  }
+
+  public synchronized int getRecipientCount(int row) {
+    return end(recipientStart, row, recipientCount) - recipientStart[row];
+  }
+
+  public synchronized int getRecipientID(int row, int i) {
+    return recipientIDs[recipientStart[row] + i];
+  }
+
+  public synchronized EveMessage.EveRecipientType getRecipientType(int row, int i) {
+    return EveMessage.EveRecipientType.values()[recipientTypes[recipientStart[row] + i]];
+  }
+
+  public synchronized int[] getLabels(int row) {
+    return Arrays.copyOfRange(labels, labelStart[row], labelStart[row] + labelLength[row]);
+  }
+}
@@ -1,6 +1,13 @@
 package enterprises.orbital.evemail.mailbox.mail;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMail200Ok;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
 import enterprises.orbital.evemail.mailbox.InMemoryId;
+import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.MessageUid;
 import org.apache.james.mailbox.exception.MailboxException;
@@ -11,44 +18,112 @@ import org.apache.james.mailbox.store.mail.ModSeqProvider;
 import org.apache.james.mailbox.store.mail.UidProvider;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
 import org.apache.james.mailbox.store.mail.model.MailboxMessage;
-import org.apache.james.mailbox.store.mail.model.Property;
 import org.apache.james.mailbox.store.mail.model.impl.SimpleMailboxMessage;
 import org.apache.james.mailbox.store.mail.utils.ApplicableFlagCalculator;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Message mapper backed by access to the mail account of an EVE Online character.
  */
 public class EveMailCachedMessageMapper extends AbstractMessageMapper {
+    private static final Logger log = Logger.getLogger(EveMailCachedMessageMapper.class.getName());
     private static final int INITIAL_SIZE = 256;
+    private static final int MAX_RENDERED = 256;
 
     private final Map<InMemoryId, EveMailboxID> idToBox;
-    private final Map<InMemoryId, Map<MessageUid, MailboxMessage>> mailboxByUid;
+    private final Map<InMemoryId, MailboxMembership> mailboxByUid;
     private final MailboxSession.User user;
+    private final int characterID;
+    private final UidProvider uidProvider;
+    private final ModSeqProvider modSeqProvider;
+    // Held so the character's header store outlives gaps where no message refers to it
+    private final EveHeaderStore headers;
+    // Content rendered for recently fetched mail, shared by later views so a repeated fetch doesn't load or
+    // render it again.  Bounded so an idle mapper holds little beyond its headers.
+    private final Map<Long, EveMessage.Rendered> rendered = Collections.synchronizedMap(
+            new LinkedHashMap<Long, EveMessage.Rendered>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, EveMessage.Rendered> eldest) {
+                    return size() > MAX_RENDERED;
+                }
+            });
+    // Time of the last query, so idle characters can be released
+    private volatile long lastAccess = OrbitalProperties.getCurrentTime();
 
     private class EveMailboxID {
         public int labelID;
         public String labelName;
 
-        public EveMailboxID(int labelID) {
+        // EVE mail ID to UID for every message we currently hold for this label.
+        // Guarded by the EveMailboxID monitor.
+        public final Map<Long, MessageUid> uidByMailID = new HashMap<>();
+        public long lastSync = 0;
+        public long lastFullSync = 0;
+
+        public EveMailboxID(int labelID, String labelName) {
             this.labelID = labelID;
+            this.labelName = labelName;
         }
     }
 
+    /**
+     * Associate a mailbox with the EVE Online label it reflects.  If the mailbox previously reflected a
+     * different label, its messages are dropped and reloaded from the new label on the next sync.
+     *
+     * @param id the mailbox to associate.
+     * @param labelID the EVE label ID.
+     * @param labelName the EVE label name.
+     */
+    public synchronized void addMailbox(InMemoryId id, int labelID, String labelName) {
+        EveMailboxID existing = idToBox.get(id);
+        if (existing != null && existing.labelID == labelID) return;
+        idToBox.put(id, new EveMailboxID(labelID, labelName));
+        if (existing != null) mailboxByUid.remove(id);
+    }
+
+    /**
+     * Stop reflecting an EVE Online label in the given mailbox and drop its messages.
+     *
+     * @param id the mailbox to remove.
+     */
+    public synchronized void removeMailbox(InMemoryId id) {
+        idToBox.remove(id);
+        mailboxByUid.remove(id);
+    }
+
+    public int getCharacterID() {
+        return characterID;
+    }
+
+    /**
+     * @return the time of the last query against this mapper.
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
 
     /**
      * Populate all messages from EVE Online for the given mailbox id.
      * This call is ignored if the mailbox represents "Trash" or "Bounced" since these mailboxes
      * are not reflected in EVE.
+     * <p>
+     * Headers are paged newest first using the "last_mail_id" cursor.  An incremental sync stops at
+     * the first page which contains a mail ID we already hold, so a mailbox with no new mail costs
+     * a single header call.  A full sync pages the entire label and is used for the initial load and
+     * every fullSyncInterval thereafter to catch deletions older than the incremental window.
+     * <p>
+     * If ESI fails once the mailbox has been loaded, the messages we already hold are served until
+     * the next sync interval.
      *
      * @param id the mailbox to populate.
-     * @throws MailboxException
+     * @throws MailboxException if ESI fails before the mailbox was ever loaded.
      */
     private void refreshMailbox(InMemoryId id) throws MailboxException {
         // Determine the mailbox label for the target mailbox
@@ -56,68 +131,155 @@ public class EveMailCachedMessageMapper extends AbstractMessageMapper {
         if (eveID == null) throw new MailboxException("Unknown mailbox: " + id);
         if (eveID.labelName.equals("Trash") || eveID.labelName.equals("Bounced")) return;
 
-        // Retrieve message headers associated with the given label
-
-        // Verify a message exists for each retrieved header.  Add any that are missing.
-
-        // Remove any messages for which a header no longer exists.
-
+        synchronized (eveID) {
+            long now = OrbitalProperties.getCurrentTime();
+            if (now - eveID.lastSync < InMemoryMailboxManager.getSyncInterval()) return;
+            boolean full = eveID.uidByMailID.isEmpty() || now - eveID.lastFullSync >= InMemoryMailboxManager.getFullSyncInterval();
+
+            // Retrieve message headers associated with the given label, newest first, until we
+            // reach a mail ID we already hold (or the end of the label for a full sync).
+            List<GetCharactersCharacterIdMail200Ok> fresh = new ArrayList<>();
+            List<GetCharactersCharacterIdMail200Ok> known = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            long oldestSeen = Long.MAX_VALUE;
+            try {
+                EveAsyncClient client = EveAsyncClient.getInstance();
+                List<Integer> labels = Collections.singletonList(eveID.labelID);
+                Integer lastMailID = null;
+                boolean done = false;
+                while (!done) {
+                    List<GetCharactersCharacterIdMail200Ok> page = EveAsyncClient.await(client.getMailHeaders(characterID, labels, lastMailID));
+                    if (page.isEmpty()) break;
+                    long previousOldest = oldestSeen;
+                    for (GetCharactersCharacterIdMail200Ok header : page) {
+                        long mailID = header.getMailId();
+                        seen.add(mailID);
+                        oldestSeen = Math.min(oldestSeen, mailID);
+                        if (eveID.uidByMailID.containsKey(mailID)) {
+                            known.add(header);
+                            if (!full) done = true;
+                        } else {
+                            fresh.add(header);
+                        }
+                    }
+                    // Guard against a page which does not advance the cursor
+                    if (oldestSeen >= previousOldest) break;
+                    lastMailID = (int) oldestSeen;
+                }
+            } catch (ApiException | IOException e) {
+                if (eveID.lastSync == 0) {
+                    log.log(Level.SEVERE, "Failed to refresh mailbox " + eveID.labelName + " for character " + characterID, e);
+                    throw new MailboxException("Failed to refresh mailbox " + eveID.labelName, e);
+                }
+                // Keep serving what we hold and try again next interval
+                log.log(Level.WARNING, "Failed to refresh mailbox " + eveID.labelName + " for character " + characterID
+                    + ", serving cached messages", e);
+                eveID.lastSync = now;
+                return;
+            }
 
-//        message.setUid(uidProvider.nextUid(mailboxSession, mailbox));
-//
-//        // if a mailbox does not support mod-sequences the provider may be null
-//        if (modSeqProvider != null) {
-//            message.setModSeq(modSeqProvider.nextModSeq(mailboxSession, mailbox));
-//        }
-//        MessageMetaData data = save(mailbox, message);
-//
-//        return data;
+            // Resolve names for all new headers in bulk before any messages are built
+            EveNameResolver names = new EveNameResolver(characterID);
+            for (GetCharactersCharacterIdMail200Ok header : fresh) names.addHeader(header);
+            names.resolve();
+
+            // Verify a message exists for each retrieved header.  Add any that are missing, oldest first
+            // so UIDs ascend with mail ID.
+            MailboxMembership membership = getMembershipByUidForId(id);
+            Collections.reverse(fresh);
+            for (GetCharactersCharacterIdMail200Ok header : fresh) {
+                Flags flags = new Flags();
+                if (header.getIsRead()) flags.add(Flag.SEEN);
+                EveMailboxMessage message = new EveMailboxMessage(characterID, header, names, flags, id);
+                message.setUid(uidFor(id, header.getMailId()));
+                if (modSeqProvider != null) message.setModSeq(modSeqProvider.nextModSeq(mailboxSession, id));
+                membership.put(message);
+                eveID.uidByMailID.put((long) header.getMailId(), message.getUid());
+            }
 
-//        SimpleMailboxMessage copy = SimpleMailboxMessage.copy(mailbox.getMailboxId(), message);
-//        copy.setUid(message.getUid());
-//        copy.setModSeq(message.getModSeq());
-//        getMembershipByUidForMailbox(mailbox).put(message.getUid(), copy);
-//
-//        return new SimpleMessageMetaData(message);
+            // Pick up changes to mail we already hold, e.g. read in game or relabelled
+            for (GetCharactersCharacterIdMail200Ok header : known) {
+                MailboxMessage current = membership.byUid().get(eveID.uidByMailID.get((long) header.getMailId()));
+                if (!(current instanceof EveMailboxMessage)) continue;
+                EveMailboxMessage updated = ((EveMailboxMessage) current).view();
+                if (updated.update(header)) {
+                    if (updated.isSeen() != current.isSeen() && modSeqProvider != null)
+                        updated.setModSeq(modSeqProvider.nextModSeq(mailboxSession, id));
+                    membership.put(updated);
+                }
+            }
 
+            // Remove any messages for which a header no longer exists.  We only have a complete view of
+            // the range of mail IDs we actually paged through.
+            for (Iterator<Map.Entry<Long, MessageUid>> it = eveID.uidByMailID.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, MessageUid> next = it.next();
+                long mailID = next.getKey();
+                if ((full || mailID >= oldestSeen) && !seen.contains(mailID)) {
+                    membership.remove(next.getValue());
+                    it.remove();
+                    if (uidProvider instanceof EveMailUidProvider)
+                        ((EveMailUidProvider) uidProvider).forget(mailboxSession, id, mailID);
+                }
+            }
+            if (uidProvider instanceof EveMailUidProvider && !fresh.isEmpty())
+                ((EveMailUidProvider) uidProvider).sync();
 
+            eveID.lastSync = now;
+            if (full) eveID.lastFullSync = now;
+        }
+    }
 
+    /**
+     * Determine the UID for an EVE mail.  An EveMailUidProvider hands back the UID this mail was given
+     * before, or derives it from the mail ID, so UIDs survive restarts.
+     */
+    private MessageUid uidFor(InMemoryId id, long mailID) throws MailboxException {
+        if (uidProvider instanceof EveMailUidProvider)
+            return ((EveMailUidProvider) uidProvider).uidFor(mailboxSession, id, mailID);
+        return uidProvider.nextUid(mailboxSession, id);
     }
 
-    public EveMailCachedMessageMapper(MailboxSession session, UidProvider uidProvider, ModSeqProvider modSeqProvider) {
+    public EveMailCachedMessageMapper(MailboxSession session, UidProvider uidProvider, ModSeqProvider modSeqProvider) throws MailboxException {
         super(session, uidProvider, modSeqProvider);
         this.idToBox = new ConcurrentHashMap<>(INITIAL_SIZE);
         this.mailboxByUid = new ConcurrentHashMap<>(INITIAL_SIZE);
         this.user = session.getUser();
+        this.characterID = InMemoryMailboxManager.getCharacterID(user);
+        this.headers = EveHeaderStore.forCharacter(characterID);
+        this.uidProvider = uidProvider;
+        this.modSeqProvider = modSeqProvider;
+    }
+
+    /**
+     * Bring the given mailbox up to date with EVE Online if it reflects an EVE label.
+     *
+     * @param mailbox the mailbox to synchronize.
+     * @throws MailboxException
+     */
+    private void syncMailbox(Mailbox mailbox) throws MailboxException {
+        lastAccess = OrbitalProperties.getCurrentTime();
+        InMemoryId id = (InMemoryId) mailbox.getMailboxId();
+        if (idToBox.containsKey(id)) refreshMailbox(id);
     }
 
-    private Map<MessageUid, MailboxMessage> getMembershipByUidForMailbox(Mailbox mailbox) {
+    private MailboxMembership getMembershipByUidForMailbox(Mailbox mailbox) {
         return getMembershipByUidForId((InMemoryId) mailbox.getMailboxId());
     }
 
-    private Map<MessageUid, MailboxMessage> getMembershipByUidForId(InMemoryId id) {
-        Map<MessageUid, MailboxMessage> membershipByUid = mailboxByUid.get(id);
-        if (membershipByUid == null) {
-            membershipByUid = new ConcurrentHashMap<MessageUid, MailboxMessage>(INITIAL_SIZE);
-            mailboxByUid.put(id, membershipByUid);
-        }
-        return membershipByUid;
+    private MailboxMembership getMembershipByUidForId(InMemoryId id) {
+        return mailboxByUid.computeIfAbsent(id, k -> new MailboxMembership());
     }
 
     @Override
     public long countMessagesInMailbox(Mailbox mailbox) throws MailboxException {
+        syncMailbox(mailbox);
         return getMembershipByUidForMailbox(mailbox).size();
     }
 
     @Override
     public long countUnseenMessagesInMailbox(Mailbox mailbox) throws MailboxException {
-        long count = 0;
-        for (MailboxMessage member : getMembershipByUidForMailbox(mailbox).values()) {
-            if (!member.isSeen()) {
-                count++;
-            }
-        }
-        return count;
+        syncMailbox(mailbox);
+        return getMembershipByUidForMailbox(mailbox).countUnseen();
     }
 
     @Override
@@ -137,44 +299,40 @@ public class EveMailCachedMessageMapper extends AbstractMessageMapper {
     @Override
     public Iterator<MailboxMessage> findInMailbox(Mailbox mailbox, MessageRange set, FetchType ftype, int max)
             throws MailboxException {
-        List<MailboxMessage> results = new ArrayList<MailboxMessage>(getMembershipByUidForMailbox(mailbox).values());
-        for (Iterator<MailboxMessage> it = results.iterator(); it.hasNext();) {
-            if (!set.includes(it.next().getUid())) {
-                it.remove();
+        syncMailbox(mailbox);
+        NavigableMap<MessageUid, MailboxMessage> membership = getMembershipByUidForMailbox(mailbox).byUid();
+        // Content is read through views, so only recently rendered content is kept
+        Iterator<MailboxMessage> views = Iterators.transform(UidRanges.iterator(membership, set, max), this::view);
+
+        // Retrieve bodies for the whole range in parallel rather than one at a time as the client reads them
+        if (ftype == FetchType.Full || ftype == FetchType.Body) {
+            List<MailboxMessage> fetched = Lists.newArrayList(views);
+            List<EveMessage> prefetch = new ArrayList<>();
+            for (MailboxMessage next : fetched) {
+                if (next instanceof EveMessage) prefetch.add((EveMessage) next);
             }
+            EveBodyPrefetcher.prefetch(prefetch);
+            return fetched.iterator();
         }
-        
-        Collections.sort(results);
+        return views;
+    }
 
-        if (max > 0 && results.size() > max) {
-            results = results.subList(0, max);
-        }
-        return results.iterator();
+    private MailboxMessage view(MailboxMessage message) {
+        if (!(message instanceof EveMailboxMessage)) return message;
+        EveMailboxMessage eve = (EveMailboxMessage) message;
+        return eve.view(rendered.computeIfAbsent(eve.messageID, k -> new EveMessage.Rendered()));
     }
 
     @Override
     public List<MessageUid> findRecentMessageUidsInMailbox(Mailbox mailbox) throws MailboxException {
-        final List<MessageUid> results = new ArrayList<MessageUid>();
-        for (MailboxMessage member : getMembershipByUidForMailbox(mailbox).values()) {
-            if (member.isRecent()) {
-                results.add(member.getUid());
-            }
-        }
-        Collections.sort(results);
-
-        return results;
+        syncMailbox(mailbox);
+        return getMembershipByUidForMailbox(mailbox).recentUids();
     }
 
     @Override
     public MessageUid findFirstUnseenMessageUid(Mailbox mailbox) throws MailboxException {
-        List<MailboxMessage> memberships = new ArrayList<MailboxMessage>(getMembershipByUidForMailbox(mailbox).values());
-        Collections.sort(memberships);
-        for (MailboxMessage m : memberships) {
-            if (m.isSeen() == false) {
-                return m.getUid();
-            }
-        }
-        return null;
+        syncMailbox(mailbox);
+        return getMembershipByUidForMailbox(mailbox).firstUnseen();
     }
 
     @Override
@@ -196,7 +354,7 @@ public class EveMailCachedMessageMapper extends AbstractMessageMapper {
 
     @Override
     public Flags getApplicableFlag(Mailbox mailbox) throws MailboxException {
-        return new ApplicableFlagCalculator(getMembershipByUidForId((InMemoryId) mailbox.getMailboxId()).values())
+        return new ApplicableFlagCalculator(getMembershipByUidForId((InMemoryId) mailbox.getMailboxId()).byUid().values())
             .computeApplicableFlags();
     }
 
@@ -225,10 +383,18 @@ public class EveMailCachedMessageMapper extends AbstractMessageMapper {
 
     @Override
     protected MessageMetaData save(Mailbox mailbox, MailboxMessage message) throws MailboxException {
+        if (message instanceof EveMailboxMessage && mailbox.getMailboxId().equals(message.getMailboxId())) {
+            // Flag update of an EVE message, keep its mailbox state without anything the view rendered.
+            // updateFlags discards the result, so don't retrieve the body just to report its size.
+            EveMailboxMessage eve = (EveMailboxMessage) message;
+            getMembershipByUidForMailbox(mailbox).put(eve.view());
+            return new SimpleMessageMetaData(eve.getUid(), eve.getModSeq(), eve.createFlags(),
+                    eve.hasBody() ? eve.getFullContentOctets() : 0, eve.getInternalDate(), eve.getMessageId());
+        }
         SimpleMailboxMessage copy = SimpleMailboxMessage.copy(mailbox.getMailboxId(), message);
         copy.setUid(message.getUid());
         copy.setModSeq(message.getModSeq());
-        getMembershipByUidForMailbox(mailbox).put(message.getUid(), copy);
+        getMembershipByUidForMailbox(mailbox).put(copy);
 
         return new SimpleMessageMetaData(message);
     }
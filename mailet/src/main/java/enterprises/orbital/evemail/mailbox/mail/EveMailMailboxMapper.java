@@ -18,12 +18,13 @@
  ****************************************************************/
 package enterprises.orbital.evemail.mailbox.mail;
 
-import com.google.common.base.Objects;
-import enterprises.orbital.eve.esi.client.api.MailApi;
+import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMailLabelsLabel;
 import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMailLabelsOk;
+import enterprises.orbital.evemail.account.EsiGovernor;
 import enterprises.orbital.evemail.account.EveMailAccount;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
 import enterprises.orbital.evemail.mailbox.InMemoryId;
 import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
 import org.apache.james.mailbox.MailboxSession;
@@ -39,26 +40,55 @@ import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
 import org.apache.mailet.Mail;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Mailbox mapper for a given user.  We map the user to an EveMailAccount
  * to reflect the contents of their EVE Online mail to whatever protocol
  * (e.g. IMAP or POP) they happen to be using.  A "bounce" mailbox will be
  * created to hold errors when we can't reach EVE to access their mail.
+ * <p>
+ * Mailboxes are served from memory.  Labels are loaded from EVE when the mapper is created and
+ * refreshed in the background once they are older than the label refresh interval, so that labels
+ * created or removed in game eventually appear without LIST ever waiting on ESI.
  */
 public class EveMailMailboxMapper implements MailboxMapper {
     protected static final Logger log = Logger.getLogger(EveMailMailboxMapper.class.getName());
 
+    public static final String PROP_LABEL_REFRESH_INTERVAL = "enterprises.orbital.evemail.labelRefreshInterval";
+    public static final long DEF_LABEL_REFRESH_INTERVAL = 5L * 60L * 1000L;
+    public static final String PROP_LABEL_REFRESH_THREADS = "enterprises.orbital.evemail.labelRefreshThreads";
+    public static final long DEF_LABEL_REFRESH_THREADS = 4L;
+
     private static final int INITIAL_SIZE = 128;
+    private static final String UID_MODE_MAIL_ID_SALT = "mailid/";
+    // UIDVALIDITY of local mailboxes in mail ID mode, changes on every start
+    private static final long startUidValidity = Math.max(1L, (OrbitalProperties.getCurrentTime() / 1000L) & 0x7fffffffL);
+
+    // Shared by all mappers.  Several threads so one slow character doesn't hold up everyone's refresh.
+    // Not the ESI background pool, since refreshes block on calls which run there.
+    private static final ExecutorService refresher = newRefresher();
+
     private final MailboxSession.User user;
     private final int characterID;
+    // Message mapper for this user, told which EVE label each mailbox reflects
+    private final EveMailCachedMessageMapper messages;
     private final ConcurrentHashMap<MailboxPath, Mailbox> mailboxesByPath;
-    private final AtomicLong mailboxIdGenerator = new AtomicLong();
+    // Secondary index, maintained together with mailboxesByPath under the mapper lock.  Reads are lock-free.
+    private final ConcurrentHashMap<InMemoryId, Mailbox> mailboxesById;
+    // Name index for LIST patterns and hasChildren, maintained the same way
+    private final MailboxNameIndex mailboxesByName = new MailboxNameIndex();
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private volatile long lastRefresh;
 
     // Inboxes which aren't allowed to be labels.  The following labels alias default EVE Online labels:
     //
@@ -74,39 +104,110 @@ public class EveMailMailboxMapper implements MailboxMapper {
 
     public static final Set<String> reservedMailboxNames = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("INBOX", "Inbox", "Trash", "Bounced", "Sent", "[Corp]", "[Alliance]")));
 
-    public EveMailMailboxMapper(MailboxSession.User user) throws MailboxException {
+    public EveMailMailboxMapper(MailboxSession.User user, EveMailCachedMessageMapper messages) throws MailboxException {
         this.user = user;
+        this.messages = messages;
         characterID = InMemoryMailboxManager.getCharacterID(user);
         mailboxesByPath = new ConcurrentHashMap<MailboxPath, Mailbox>(INITIAL_SIZE);
+        mailboxesById = new ConcurrentHashMap<InMemoryId, Mailbox>(INITIAL_SIZE);
 
         // Populate initial set from EVE Online
-        refreshMailboxes();
+        refreshMailboxes(EsiGovernor.Priority.INTERACTIVE);
 
         // Every user has a "Trash" and "Bounced" mailbox
         for (String mbname : Arrays.asList("Trash", "Bounced")) {
             MailboxPath path = new MailboxPath(null, user.getUserName(), mbname);
-            Mailbox box = new SimpleMailbox(path, mailboxIdGenerator.incrementAndGet());
-            save(box);
+            save(createMailbox(path));
+        }
+
+        // Remaining mailboxes are populated from user's EVE Online labels and kept current by
+        // scheduleRefresh
+    }
+
+    /**
+     * @return true if the named mailbox has an ID derived from its name rather than recorded in the
+     * mailbox state log.  In mail ID mode this is the case for reserved mailboxes, user labels are always
+     * recorded.
+     */
+    private static boolean derivesIdentity(String name) {
+        return InMemoryMailboxManager.useMailIdUids() && reservedMailboxNames.contains(name);
+    }
+
+    /**
+     * Create a mailbox with a stable ID and UIDVALIDITY for its name, so that clients don't have to
+     * resynchronize after a restart.  These are recorded in the mailbox state log, or derived from the
+     * name for reserved mailboxes in mail ID mode.
+     *
+     * @param path the mailbox path.
+     * @return the new mailbox, not yet saved.
+     * @throws MailboxException if the mailbox identity could not be recorded.
+     */
+    private Mailbox createMailbox(MailboxPath path) throws MailboxException {
+        if (derivesIdentity(path.getName())) {
+            // Numbered by mail ID and keep a derived UIDVALIDITY.  Local mailboxes only live in memory, so
+            // they get a new UIDVALIDITY every start.
+            boolean local = path.getName().equals("Trash") || path.getName().equals("Bounced");
+            long uidValidity = local ? startUidValidity : derivedUidValidity(path.getName());
+            SimpleMailbox box = new SimpleMailbox(path, uidValidity);
+            box.setMailboxId(MailIdUidProvider.systemMailboxId(characterID, path.getName()));
+            return box;
         }
+        MailboxStateLog.MailboxRecord record = MailboxStateLog.getInstance().mailbox(characterID, path.getName());
+        SimpleMailbox box = new SimpleMailbox(path, record.getUidValidity());
+        box.setMailboxId(InMemoryId.of(record.getId()));
+        return box;
+    }
+
+    private long derivedUidValidity(String name) {
+        CRC32 crc = new CRC32();
+        crc.update((UID_MODE_MAIL_ID_SALT + characterID + "/" + name).getBytes(StandardCharsets.UTF_8));
+        // UIDVALIDITY is a non-zero 32 bit unsigned value
+        return Math.max(1L, crc.getValue() & 0x7fffffffL);
+    }
+
+    private static ExecutorService newRefresher() {
+        int threads = (int) OrbitalProperties.getLongGlobalProperty(PROP_LABEL_REFRESH_THREADS, DEF_LABEL_REFRESH_THREADS);
+        final AtomicInteger count = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "evemail-label-refresh-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
-        // Remaining mailboxes are populated from user's EVE Online labels
-        //        EveMailAccount senderAccount = EveMailAccount.getAccountByID(characterID);
-        // TODO: these need to be updated periodically in case the user creates a new label in game
+    /**
+     * Queue a background label refresh if labels are stale and no refresh is already queued.
+     */
+    protected void scheduleRefresh() {
+        long interval = OrbitalProperties.getLongGlobalProperty(PROP_LABEL_REFRESH_INTERVAL, DEF_LABEL_REFRESH_INTERVAL);
+        if (OrbitalProperties.getCurrentTime() - lastRefresh < interval) return;
+        if (!refreshPending.compareAndSet(false, true)) return;
+        refresher.execute(() -> {
+            try {
+                refreshMailboxes(EsiGovernor.Priority.BACKGROUND);
+            } catch (MailboxException e) {
+                log.log(Level.WARNING, "Background mailbox refresh failed for character " + characterID, e);
+            } finally {
+                refreshPending.set(false);
+            }
+        });
     }
 
     /**
      * Refresh list of mailboxes from EVE Online
+     *
+     * @param priority ESI priority for the label request.
      */
-    protected void refreshMailboxes() throws MailboxException {
+    protected void refreshMailboxes(EsiGovernor.Priority priority) throws MailboxException {
+        // Record the attempt up front so failures back off for a full interval as well
+        lastRefresh = OrbitalProperties.getCurrentTime();
         EveMailAccount owner = EveMailAccount.getAccountByID(characterID);
         if (owner == null)
             throw new MailboxException("Unable to refresh mailboxes from EVE Online with current character ID");
 
         try {
             // Retrieve labels for owning character
-            MailApi apiInstance = new MailApi();
-            String token = EveMailAccount.refresh(characterID, InMemoryMailboxManager.getTokenWindow());
-            GetCharactersCharacterIdMailLabelsOk result = apiInstance.getCharactersCharacterIdMailLabels(characterID, null, token, InMemoryMailboxManager.getUserAgent(), null);
+            GetCharactersCharacterIdMailLabelsOk result = EveAsyncClient.await(EveAsyncClient.getInstance().getMailLabels(priority, characterID));
 
             // Ensure all listed labels are populated as mailboxes
             Set<String> eveLabelNames = new HashSet<>();
@@ -115,11 +216,18 @@ public class EveMailMailboxMapper implements MailboxMapper {
                 if (name.equals("Inbox")) name="INBOX";
                 eveLabelNames.add(name);
                 MailboxPath path = new MailboxPath(null, user.getUserName(), name);
-                if (!mailboxesByPath.contains(path)) {
+                if (!mailboxesByPath.containsKey(path)) {
                     // Add missing mailbox
-                    Mailbox box = new SimpleMailbox(path, mailboxIdGenerator.incrementAndGet());
-                    save(box);
+                    try {
+                        save(createMailbox(path));
+                    } catch (MailboxExistsException e) {
+                        // Created concurrently, nothing to do
+                    }
                 }
+                // Let the message mapper sync this mailbox from its label
+                Mailbox mailbox = mailboxesByPath.get(path);
+                if (mailbox != null)
+                    messages.addMailbox((InMemoryId) mailbox.getMailboxId(), label.getLabelId(), label.getName());
             }
 
             // Remove mailboxes that are not labels and not reserved
@@ -129,7 +237,7 @@ public class EveMailMailboxMapper implements MailboxMapper {
                 if (!eveLabelNames.contains(name) && !reservedMailboxNames.contains(name))
                     toRemove.add(existing);
             }
-            for (MailboxPath remove : toRemove) mailboxesByPath.remove(remove);
+            for (MailboxPath remove : toRemove) removeMailbox(remove);
         } catch (ApiException | IOException e) {
             log.log(Level.SEVERE, "Failed to refresh mailbox list", e);
             throw new MailboxException("Failed to refresh mailbox list", e);
@@ -142,17 +250,34 @@ public class EveMailMailboxMapper implements MailboxMapper {
      */
     public void delete(Mailbox mailbox) throws MailboxException {
         // TODO: if the mailbox represents an EVE label, then remove the appropriate label and refresh
-        mailboxesByPath.remove(mailbox.generateAssociatedPath());
+        removeMailbox(mailbox.generateAssociatedPath());
     }
 
-    public void deleteAll() throws MailboxException {
+    public synchronized void deleteAll() throws MailboxException {
         mailboxesByPath.clear();
+        mailboxesById.clear();
+        mailboxesByName.clear();
+    }
+
+    /**
+     * Remove a mailbox along with its messages.  In log mode its recorded state is forgotten as well, so a
+     * mailbox created later under the same name starts with a new ID and UIDVALIDITY.
+     */
+    private synchronized void removeMailbox(MailboxPath path) throws MailboxException {
+        Mailbox removed = mailboxesByPath.remove(path);
+        if (removed != null) {
+            InMemoryId id = (InMemoryId) removed.getMailboxId();
+            mailboxesById.remove(id, removed);
+            mailboxesByName.remove(path);
+            messages.removeMailbox(id);
+            if (!MailIdUidProvider.isSystemMailbox(id)) MailboxStateLog.getInstance().delete(id.getRawId());
+        }
     }
 
     /**
      * @see MailboxMapper#findMailboxByPath(MailboxPath)
      */
-    public synchronized Mailbox findMailboxByPath(MailboxPath path) throws MailboxException {
+    public Mailbox findMailboxByPath(MailboxPath path) throws MailboxException {
         Mailbox result = mailboxesByPath.get(path);
         if (result == null) {
             throw new MailboxNotFoundException(path);
@@ -161,58 +286,56 @@ public class EveMailMailboxMapper implements MailboxMapper {
         }
     }
 
-    public synchronized Mailbox findMailboxById(MailboxId id) throws MailboxException {
+    public Mailbox findMailboxById(MailboxId id) throws MailboxException {
         InMemoryId mailboxId = (InMemoryId)id;
-        for (Mailbox mailbox: mailboxesByPath.values()) {
-            if (mailbox.getMailboxId().equals(mailboxId)) {
-                return new SimpleMailbox(mailbox);
-            }
+        Mailbox mailbox = mailboxesById.get(mailboxId);
+        if (mailbox == null) {
+            throw new MailboxNotFoundException(mailboxId.serialize());
         }
-        throw new MailboxNotFoundException(mailboxId.serialize());
+        return new SimpleMailbox(mailbox);
     }
 
     /**
      * @see MailboxMapper#findMailboxWithPathLike(MailboxPath)
      */
     public List<Mailbox> findMailboxWithPathLike(MailboxPath path) throws MailboxException {
-        final String regex = path.getName().replace("%", ".*");
-        log.log(Level.INFO, "Searching for mailboxes which match " + regex);
+        // IMAP LIST arrives here, pick up label changes without waiting on them
+        scheduleRefresh();
         List<Mailbox> results = new ArrayList<Mailbox>();
-        for (Mailbox mailbox: mailboxesByPath.values()) {
-            if (mailboxMatchesRegex(mailbox, path, regex)) {
-                log.log(Level.INFO, "Found: " + mailbox.getName());
-                results.add(new SimpleMailbox(mailbox));
-            }
+        for (Mailbox mailbox : mailboxesByName.match(path.getNamespace(), path.getUser(), path.getName())) {
+            results.add(new SimpleMailbox(mailbox));
         }
+        log.log(Level.FINE, "Found " + results.size() + " mailboxes matching " + path.getName());
         return results;
     }
 
-    private boolean mailboxMatchesRegex(Mailbox mailbox, MailboxPath path, String regex) {
-        return Objects.equal(mailbox.getNamespace(), path.getNamespace())
-            && Objects.equal(mailbox.getUser(), path.getUser())
-            && mailbox.getName().matches(regex);
-    }
-
     /**
      * @see MailboxMapper#save(Mailbox)
      */
-    public MailboxId save(Mailbox mailbox) throws MailboxException {
+    public synchronized MailboxId save(Mailbox mailbox) throws MailboxException {
         InMemoryId id = (InMemoryId) mailbox.getMailboxId();
+        boolean renamed = false;
         if (id == null) {
-            id = InMemoryId.of(mailboxIdGenerator.incrementAndGet());
+            // Created by a client, reuse the ID of any earlier mailbox with this name
+            id = derivesIdentity(mailbox.getName()) ? MailIdUidProvider.systemMailboxId(characterID, mailbox.getName()) :
+                    InMemoryId.of(MailboxStateLog.getInstance().register(characterID, mailbox.getName(), mailbox.getUidValidity()).getId());
             ((SimpleMailbox) mailbox).setMailboxId(id);
         } else {
-            try {
-                Mailbox mailboxWithPreviousName = findMailboxById(id);
-                mailboxesByPath.remove(mailboxWithPreviousName.generateAssociatedPath());
-            } catch (MailboxNotFoundException e) {
-                // No need to remove the previous enterprises.orbital.evemail.mailbox
+            Mailbox mailboxWithPreviousName = mailboxesById.get(id);
+            if (mailboxWithPreviousName != null) {
+                MailboxPath previousPath = mailboxWithPreviousName.generateAssociatedPath();
+                mailboxesByPath.remove(previousPath);
+                mailboxesByName.remove(previousPath);
+                renamed = !previousPath.equals(mailbox.generateAssociatedPath());
             }
         }
         Mailbox previousMailbox = mailboxesByPath.putIfAbsent(mailbox.generateAssociatedPath(), mailbox);
         if (previousMailbox != null) {
             throw new MailboxExistsException(mailbox.getName());
         }
+        mailboxesById.put(id, mailbox);
+        mailboxesByName.put(mailbox.generateAssociatedPath(), mailbox);
+        if (renamed && !MailIdUidProvider.isSystemMailbox(id)) MailboxStateLog.getInstance().rename(id.getRawId(), mailbox.getName());
         log.log(Level.INFO, "Saving mailbox: " + mailbox.getMailboxId().serialize());
         return mailbox.getMailboxId();
     }
@@ -228,25 +351,14 @@ public class EveMailMailboxMapper implements MailboxMapper {
      * @see MailboxMapper#hasChildren(Mailbox, char)
      */
     public boolean hasChildren(Mailbox mailbox, char delimiter) throws MailboxException {
-        String mailboxName = mailbox.getName() + delimiter;
-        for (Mailbox box: mailboxesByPath.values()) {
-            if (belongsToSameUser(mailbox, box) && box.getName().startsWith(mailboxName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean belongsToSameUser(Mailbox mailbox, Mailbox otherMailbox) {
-        return Objects.equal(mailbox.getNamespace(), otherMailbox.getNamespace())
-            && Objects.equal(mailbox.getUser(), otherMailbox.getUser());
+        return mailboxesByName.hasPrefix(mailbox.getNamespace(), mailbox.getUser(), mailbox.getName() + delimiter);
     }
 
     /**
      * @see MailboxMapper#list()
      */
     public List<Mailbox> list() throws MailboxException {
-        refreshMailboxes();
+        scheduleRefresh();
         return new ArrayList<Mailbox>(mailboxesByPath.values());
     }
 
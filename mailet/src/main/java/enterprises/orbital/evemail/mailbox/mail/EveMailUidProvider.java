@@ -0,0 +1,43 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.store.mail.UidProvider;
+
+/**
+ * UID provider which assigns UIDs to EVE mails by mail ID, so a mail keeps its UID in a mailbox for as
+ * long as the provider can remember or derive it.
+ */
+public interface EveMailUidProvider extends UidProvider {
+
+    /**
+     * Retrieve the UID of an EVE mail in a mailbox, allocating a new UID the first time the mail is seen
+     * in that mailbox.
+     *
+     * @param session the current session.
+     * @param mailboxId the mailbox holding the mail.
+     * @param mailID EVE mail ID.
+     * @return the UID of the mail in this mailbox.
+     * @throws MailboxException if a new UID could not be recorded.
+     */
+    MessageUid uidFor(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException;
+
+    /**
+     * Release the UID of an EVE mail which has left a mailbox.  The UID is not reused.
+     *
+     * @param session the current session.
+     * @param mailboxId the mailbox which held the mail.
+     * @param mailID EVE mail ID.
+     * @throws MailboxException if the provider state is unavailable.
+     */
+    void forget(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException;
+
+    /**
+     * Make UIDs allocated so far durable.
+     *
+     * @throws MailboxException if provider state could not be saved.
+     */
+    void sync() throws MailboxException;
+}
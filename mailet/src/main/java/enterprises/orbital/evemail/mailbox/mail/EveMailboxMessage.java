@@ -8,20 +8,81 @@ import org.apache.james.mailbox.store.mail.model.MailboxMessage;
 
 import javax.mail.Flags;
 
+/**
+ * Mailbox view of an EVE message.  A mailbox membership holds one instance per message as the record of
+ * its UID, ModSeq and flags in that mailbox, so a mail shown under several labels has separate flags in
+ * each.  Header data is shared through the character's header store.
+ * <p>
+ * Requests read content through a {@link #view(Rendered)} sharing a bounded per-mapper cache of rendered
+ * content, rather than keeping rendered headers and bodies for every message of every idle user.  The
+ * per-mailbox instance itself stays since James iterates and updates MailboxMessage objects.
+ */
 public class EveMailboxMessage extends EveMessage implements MailboxMessage {
+  private static final String[] NO_USER_FLAGS = new String[0];
+  private static final byte SEEN = 1;
+  private static final byte FLAGGED = 2;
 
   private MessageUid uid;
   private final MailboxId mailboxId;
-  private boolean flagged;
-  private boolean seen;
-  private String[] userFlags;
+  private byte flags;
+  // Read state last reported by EVE, so a local change to seen is kept until EVE reports a new one
+  private boolean eveRead;
+  private String[] userFlags = NO_USER_FLAGS;
   private long modSeq;
 
   public EveMailboxMessage(int characterID, GetCharactersCharacterIdMail200Ok header, Flags flags, MailboxId mailboxId) {
     super(characterID, header);
     setFlags(flags);
     this.mailboxId = mailboxId;
-    this.userFlags = flags.getUserFlags();
+    eveRead = Boolean.TRUE.equals(header.getIsRead());
+  }
+
+  public EveMailboxMessage(int characterID, GetCharactersCharacterIdMail200Ok header, EveNameResolver names, Flags flags, MailboxId mailboxId) {
+    super(characterID, header, names);
+    setFlags(flags);
+    this.mailboxId = mailboxId;
+    eveRead = Boolean.TRUE.equals(header.getIsRead());
+  }
+
+  private EveMailboxMessage(EveMailboxMessage source, Rendered rendered) {
+    super(source, rendered);
+    uid = source.uid;
+    mailboxId = source.mailboxId;
+    flags = source.flags;
+    eveRead = source.eveRead;
+    userFlags = source.userFlags;
+    modSeq = source.modSeq;
+  }
+
+  /**
+   * @return a copy of this message with the same mailbox state and no rendered content.
+   */
+  public EveMailboxMessage view() {
+    return new EveMailboxMessage(this, new Rendered());
+  }
+
+  /**
+   * @param rendered content already rendered for this message, filled in further as the view is read.
+   * @return a copy of this message with the same mailbox state, sharing rendered content.
+   */
+  EveMailboxMessage view(Rendered rendered) {
+    return new EveMailboxMessage(this, rendered);
+  }
+
+  /**
+   * Apply a newer header for this mail.  The header store is updated, and if EVE now reports a different
+   * read state than before, seen is set to match.
+   *
+   * @param header the newer header.
+   * @return true if the state of this message changed and it should be stored again.
+   */
+  public boolean update(GetCharactersCharacterIdMail200Ok header) {
+    store.add(header);
+    boolean read = Boolean.TRUE.equals(header.getIsRead());
+    if (read == eveRead) return false;
+    eveRead = read;
+    flags = (byte) (read ? flags | SEEN : flags & ~SEEN);
+    return true;
   }
 
   @Override
@@ -70,7 +131,7 @@ public class EveMailboxMessage extends EveMessage implements MailboxMessage {
   @Override
   public boolean isFlagged() {
     // TODO: figure out what this means in the context of EVE
-    return flagged;
+    return (flags & FLAGGED) != 0;
   }
 
   @Override
@@ -81,20 +142,20 @@ public class EveMailboxMessage extends EveMessage implements MailboxMessage {
 
   @Override
   public boolean isSeen() {
-    return read;
+    return (flags & SEEN) != 0;
   }
 
   @Override
   public void setFlags(Flags flags) {
     // TODO: changing "seen" should set the "is read" flag in EVE
-    flagged = flags.contains(Flags.Flag.FLAGGED);
-    seen = flags.contains(Flags.Flag.SEEN);
-    userFlags = flags.getUserFlags();
+    this.flags = (byte) ((flags.contains(Flags.Flag.SEEN) ? SEEN : 0) | (flags.contains(Flags.Flag.FLAGGED) ? FLAGGED : 0));
+    String[] user = flags.getUserFlags();
+    userFlags = user.length == 0 ? NO_USER_FLAGS : user;
   }
 
   @Override
   public Flags createFlags() {
-    return FlagsBuilder.createFlags(this, userFlags.clone());
+    return FlagsBuilder.createFlags(this, userFlags.length == 0 ? userFlags : userFlags.clone());
   }
 
   @Override
@@ -0,0 +1,98 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMailLists200Ok;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-character directory of mailing list names.  The full mailing list list for a character is loaded
+ * once and then refreshed every refresh interval, or on a lookup miss (at most once per miss interval
+ * so unknown IDs can't cause a refresh storm).  Lookups are lock-free map reads.
+ */
+public class EveMailingListDirectory {
+  private static final Logger log = Logger.getLogger(EveMailingListDirectory.class.getName());
+
+  public static final String PROP_MAILING_LIST_REFRESH = "enterprises.orbital.evemail.mailingListRefresh";
+  public static final long DEF_MAILING_LIST_REFRESH = 60L * 60L * 1000L;
+  public static final String PROP_MAILING_LIST_MISS_REFRESH = "enterprises.orbital.evemail.mailingListMissRefresh";
+  public static final long DEF_MAILING_LIST_MISS_REFRESH = 5L * 60L * 1000L;
+
+  private static final Map<Integer, EveMailingListDirectory> directories = new ConcurrentHashMap<>();
+
+  private final int characterID;
+  private volatile Map<Integer, String> names = Collections.emptyMap();
+  private volatile long loaded = 0;
+
+  private EveMailingListDirectory(int characterID) {
+    this.characterID = characterID;
+  }
+
+  /**
+   * Retrieve the directory for the given character.
+   *
+   * @param characterID the character which owns the mailing lists.
+   * @return the directory for this character.
+   */
+  public static EveMailingListDirectory getDirectory(int characterID) {
+    return directories.computeIfAbsent(characterID, EveMailingListDirectory::new);
+  }
+
+  /**
+   * Discard the directory for the given character, e.g. when the character account is removed.
+   *
+   * @param characterID the character to evict.
+   */
+  public static void evict(int characterID) {
+    directories.remove(characterID);
+  }
+
+  /**
+   * Look up a mailing list name, loading or refreshing the directory as needed.
+   *
+   * @param mailingListID the mailing list to resolve.
+   * @return the mailing list name, or null if the list is unknown or can't be retrieved.
+   */
+  public String getName(int mailingListID) {
+    long seen = loaded;
+    long age = OrbitalProperties.getCurrentTime() - seen;
+    String name = names.get(mailingListID);
+    if (name != null && age < OrbitalProperties.getLongGlobalProperty(PROP_MAILING_LIST_REFRESH, DEF_MAILING_LIST_REFRESH))
+      return name;
+    if (name == null && age < OrbitalProperties.getLongGlobalProperty(PROP_MAILING_LIST_MISS_REFRESH, DEF_MAILING_LIST_MISS_REFRESH))
+      return null;
+    refresh(seen);
+    String refreshed = names.get(mailingListID);
+    // Fall back to the stale name if the refresh failed
+    return refreshed != null ? refreshed : name;
+  }
+
+  /**
+   * Reload the directory from ESI unless another caller has already done so since the given load time.
+   *
+   * @param seen the load time observed by the caller.
+   */
+  protected synchronized void refresh(long seen) {
+    if (loaded != seen) return;
+    try {
+      Map<Integer, String> update = new HashMap<>();
+      for (GetCharactersCharacterIdMailLists200Ok i : EveAsyncClient.await(EveAsyncClient.getInstance().getMailingLists(characterID)))
+        update.put(i.getMailingListId(), i.getName());
+      names = Collections.unmodifiableMap(update);
+    } catch (ApiException e) {
+      log.log(Level.WARNING, "Unable to retrieve mailing lists for character ID: " + characterID, e);
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "Error retrieving token for character ID: " + characterID, e);
+    }
+    // Record the attempt even on failure so we back off until the next miss interval
+    loaded = OrbitalProperties.getCurrentTime();
+  }
+}
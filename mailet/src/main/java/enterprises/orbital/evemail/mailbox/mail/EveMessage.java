@@ -1,42 +1,45 @@
 package enterprises.orbital.evemail.mailbox.mail;
 
-import enterprises.orbital.eve.esi.client.api.AllianceApi;
-import enterprises.orbital.eve.esi.client.api.CharacterApi;
-import enterprises.orbital.eve.esi.client.api.CorporationApi;
-import enterprises.orbital.eve.esi.client.api.MailApi;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.model.*;
-import enterprises.orbital.evemail.account.EveMailAccount;
-import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
+import enterprises.orbital.evemail.account.EsiGovernor;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
 import enterprises.orbital.evemail.mailbox.InMemoryMessageId;
 import org.apache.james.mailbox.model.MessageAttachment;
 import org.apache.james.mailbox.model.MessageId;
 import org.apache.james.mailbox.store.mail.model.Message;
 import org.apache.james.mailbox.store.mail.model.Property;
-import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 import java.io.*;
 import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Representation of a full EVE Online message.  Body is retrieved lazily if/when it is
  * needed.
  */
 public class EveMessage implements Message {
-  private static final Logger log = Logger.getLogger(EveMessage.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final DateTimeFormatter RFC822_DATE = DateTimeFormat.forPattern("EEE, d MMM yyyy HH:mm:ss Z").withLocale(Locale.US).withZoneUTC();
 
   protected final int characterID;
   protected final long messageID;
-  protected final DateTime timestamp;
-  protected final String subject;
-  protected boolean read;
-  protected final EveRecipient from;
-  protected final List<EveRecipient> recipients;
-  protected String body = null;
+  // Header data lives in the character's header store, we only hold our row
+  protected final EveHeaderStore store;
+  protected final int row;
+  protected final Rendered rendered;
+
+  /**
+   * Content rendered for a message.  Header and body never change once sent, so views of the same
+   * message may share one instance.
+   */
+  static final class Rendered {
+    volatile String body;
+    volatile byte[] header;
+    volatile byte[] bodyBytes;
+  }
 
   protected enum EveRecipientType {
     ALLIANCE,
@@ -60,119 +63,132 @@ public class EveMessage implements Message {
     }
   }
 
-  protected static class EveRecipient {
-    public int recipientID;
-    public EveRecipientType recipientType;
-    public String recipientName;
-
-    public EveRecipient(int recipientID, EveRecipientType recipientType, String recipientName) {
-      this.recipientID = recipientID;
-      this.recipientType = recipientType;
-      this.recipientName = recipientName;
-    }
+  public EveMessage(int characterID, GetCharactersCharacterIdMail200Ok header) {
+    this(characterID, header, resolverFor(characterID, header));
   }
 
-  public EveMessage(int characterID, GetCharactersCharacterIdMail200Ok header) {
+  /**
+   * Create a message using names already resolved in bulk for a batch of headers.  The resolver
+   * must have been populated with this header and resolved before calling this constructor.
+   *
+   * @param characterID the character which owns this message.
+   * @param header the mail header.
+   * @param names resolved sender and recipient names.
+   */
+  public EveMessage(int characterID, GetCharactersCharacterIdMail200Ok header, EveNameResolver names) {
     this.characterID = characterID;
     messageID = header.getMailId();
-    timestamp = header.getTimestamp();
-    subject = header.getSubject();
-    read = header.getIsRead();
-    recipients = new ArrayList<>();
-    String senderName = null;
-    try {
-      senderName = getCharacterName(header.getFrom());
-    } catch (ApiException e) {
-      log.log(Level.WARNING, "Unable to resolve sending character ID: " + header.getFrom(), e);
-    }
-    from = new EveRecipient(header.getFrom(), EveRecipientType.CHARACTER, senderName == null ? "Unresolved" : senderName);
-    String recipientName = null;
+    // Record resolved names in the shared dictionary, the store keeps only IDs
+    EveNameDictionary dictionary = EveNameDictionary.getInstance();
+    dictionary.put(EveRecipientType.CHARACTER, header.getFrom(), names.getCharacterName(header.getFrom()));
     for (GetCharactersCharacterIdMailRecipient i : header.getRecipients()) {
-      recipientName = null;
-      try {
-        switch (i.getRecipientType()) {
-          case ALLIANCE:
-            recipientName = getAllianceName(i.getRecipientId());
-            break;
-
-          case CHARACTER:
-            recipientName = getCharacterName(i.getRecipientId());
-            break;
-
-          case CORPORATION:
-            recipientName = getCorporationName(i.getRecipientId());
-            break;
-
-          case MAILING_LIST:
-            recipientName = getMailingList(characterID, i.getRecipientId());
-            break;
-
-          default:
-            // Should never happen
-            throw new RuntimeException("Unknown recipient type " + i.getRecipientType());
-        }
-      } catch (ApiException e) {
-        log.log(Level.WARNING, "Unable to resolve recipient ID: " + i.getRecipientId(), e);
+      int id = i.getRecipientId();
+      switch (i.getRecipientType()) {
+        case ALLIANCE:
+          dictionary.put(EveRecipientType.ALLIANCE, id, names.getAllianceName(id));
+          break;
+
+        case CHARACTER:
+          dictionary.put(EveRecipientType.CHARACTER, id, names.getCharacterName(id));
+          break;
+
+        case CORPORATION:
+          dictionary.put(EveRecipientType.CORPORATION, id, names.getCorporationName(id));
+          break;
+
+        case MAILING_LIST:
+          dictionary.put(EveRecipientType.MAILING_LIST, id, names.getMailingListName(id));
+          break;
+
+        default:
+          // Should never happen
+          throw new RuntimeException("Unknown recipient type " + i.getRecipientType());
       }
-      recipients.add(new EveRecipient(i.getRecipientId(), EveRecipientType.mapApiToType(i.getRecipientType()), recipientName == null ? "Unresolved" : recipientName));
     }
+    store = EveHeaderStore.forCharacter(characterID);
+    row = store.add(header);
+    rendered = new Rendered();
   }
 
-  protected static String getCharacterName(int characterID) throws ApiException {
-    CharacterApi apiInstance = new CharacterApi();
-    List<Long> characterIds = Arrays.asList((long) characterID);
-    String userAgent = InMemoryMailboxManager.getUserAgent();
-    List<GetCharactersNames200Ok> result = apiInstance.getCharactersNames(characterIds, null, userAgent, null);
-    return result.isEmpty() ? null : result.get(0).getCharacterName();
+  /**
+   * Create another view of a stored message.
+   *
+   * @param source the message to view.
+   * @param rendered content rendered for this message so far, shared with other views of it.
+   */
+  protected EveMessage(EveMessage source, Rendered rendered) {
+    characterID = source.characterID;
+    messageID = source.messageID;
+    store = source.store;
+    row = source.row;
+    this.rendered = rendered;
   }
 
-  protected static String getCorporationName(int corporationID) throws ApiException {
-    CorporationApi apiInstance = new CorporationApi();
-    List<Long> corporationIds = Arrays.asList((long) corporationID);
-    String userAgent = InMemoryMailboxManager.getUserAgent();
-    List<GetCorporationsNames200Ok> result = apiInstance.getCorporationsNames(corporationIds, null, userAgent, null);
-    return result.isEmpty() ? null : result.get(0).getCorporationName();
+  private static EveNameResolver resolverFor(int characterID, GetCharactersCharacterIdMail200Ok header) {
+    EveNameResolver names = new EveNameResolver(characterID);
+    names.addHeader(header);
+    names.resolve();
+    return names;
   }
 
-  protected static String getAllianceName(int allianceID) throws ApiException {
-    AllianceApi apiInstance = new AllianceApi();
-    List<Long> allianceIds = Arrays.asList((long) allianceID);
-    String userAgent = InMemoryMailboxManager.getUserAgent();
-    List<GetAlliancesNames200Ok> result = apiInstance.getAlliancesNames(allianceIds, null, userAgent, null);
-    return result.isEmpty() ? null : result.get(0).getAllianceName();
+  protected boolean hasBody() {
+    return rendered.body != null;
   }
 
-  protected static String getMailingList(int characterID, int mailingListID) throws ApiException {
+  protected String getBody() throws IOException {
+    String body = rendered.body;
+    if (body != null) return body;
+    synchronized (rendered) {
+      if (rendered.body == null) rendered.body = loadBody();
+      return rendered.body;
+    }
+  }
+
+  /**
+   * Retrieve the body for prefetch.  A client FETCH is waiting on the prefetch, so it runs at interactive
+   * priority.  This does not hold the message lock while waiting on ESI, so a direct read of the same
+   * message is never stuck behind a prefetch.
+   *
+   * @throws IOException if the body could not be retrieved.
+   */
+  protected void prefetchBody() throws IOException {
+    if (rendered.body != null) return;
+    String loaded = loadBody();
+    synchronized (rendered) {
+      if (rendered.body == null) rendered.body = loaded;
+    }
+  }
+
+  // A client is always waiting on the body, so it is retrieved at interactive priority
+  private String loadBody() throws IOException {
+    // Bodies never change once sent, so check the local store before asking ESI
+    EveBodyStore bodyStore = EveBodyStore.getInstance();
+    String stored = bodyStore == null ? null : bodyStore.get(characterID, messageID);
+    if (stored != null) return stored;
     try {
-      MailApi apiInstance = new MailApi();
-      String token = EveMailAccount.refresh(characterID, InMemoryMailboxManager.getTokenWindow());
-      String userAgent = InMemoryMailboxManager.getUserAgent();
-      List<GetCharactersCharacterIdMailLists200Ok> result = apiInstance.getCharactersCharacterIdMailLists(characterID, null, token, userAgent, null);
-      for (GetCharactersCharacterIdMailLists200Ok i : result) {
-        if (i.getMailingListId() == mailingListID) return i.getName();
-      }
-      return null;
-    } catch (IOException e) {
-      log.log(Level.SEVERE, "Error retrieving token for character ID: " + characterID, e);
-      return null;
+      GetCharactersCharacterIdMailMailIdOk result = EveAsyncClient.await(EveAsyncClient.getInstance().getMailBody(EsiGovernor.Priority.INTERACTIVE, characterID, messageID));
+      String loaded = result.getBody();
+      if (bodyStore != null) bodyStore.put(characterID, messageID, loaded);
+      return loaded;
+    } catch (ApiException e) {
+      throw new IOException(e);
     }
   }
 
-  protected String getBody() throws IOException {
-    if (body != null) return body;
-    synchronized (this) {
-      if (body != null) return body;
-      try {
-        MailApi apiInstance = new MailApi();
-        String token = EveMailAccount.refresh(characterID, InMemoryMailboxManager.getTokenWindow());
-        String userAgent = InMemoryMailboxManager.getUserAgent();
-        GetCharactersCharacterIdMailMailIdOk result = apiInstance.getCharactersCharacterIdMailMailId(characterID, (int) messageID, null, token, userAgent, null);
-        body = result.getBody();
-        return body;
-      } catch (ApiException e) {
-        throw new IOException(e);
-      }
+  /**
+   * Bodies are immutable, so we encode once and serve all content and size accessors from the same
+   * buffer.  Callers must not modify the result.
+   *
+   * @return the UTF-8 encoded body.
+   * @throws IOException if the body can't be retrieved.
+   */
+  protected byte[] getBodyBytes() throws IOException {
+    byte[] result = rendered.bodyBytes;
+    if (result == null) {
+      result = getBody().getBytes(UTF_8);
+      rendered.bodyBytes = result;
     }
+    return result;
   }
 
   // We store enough data to form the following standard header:
@@ -183,33 +199,67 @@ public class EveMessage implements Message {
   // Date: Fri, 21 Nov 1997 09:55:06 -0600
   // Message-ID: <message_id@evemail.orbital.enterprises>
 
-  protected String getHeader() {
+  private static String nameOf(EveRecipientType type, int id) {
+    String name = EveNameDictionary.getInstance().get(type, id);
+    return name == null ? "Unresolved" : name;
+  }
+
+  protected String renderHeader() {
     StringBuilder builder = new StringBuilder();
-    builder.append("From: ").append(from.recipientName).append(" <").append(from.recipientID).append("@char.evemail.orbital.enterprises>\r\n");
+    int sender = store.getSender(row);
+    builder.append("From: ").append(nameOf(EveRecipientType.CHARACTER, sender)).append(" <").append(sender).append("@char.evemail.orbital.enterprises>\r\n");
     builder.append("To: ");
-    for (int i = 0; i < recipients.size(); i++) {
-      EveRecipient r = recipients.get(i);
-      builder.append(r.recipientName).append(" <").append(r.recipientID);
-      switch (r.recipientType) {
+    int count = store.getRecipientCount(row);
+    for (int i = 0; i < count; i++) {
+      int recipientID = store.getRecipientID(row, i);
+      EveRecipientType recipientType = store.getRecipientType(row, i);
+      builder.append(nameOf(recipientType, recipientID)).append(" <").append(recipientID);
+      switch (recipientType) {
         case CHARACTER:
           builder.append("@char.evemail.orbital.enterprises>");
+          break;
         case CORPORATION:
           builder.append("@corp.evemail.orbital.enterprises>");
+          break;
         case ALLIANCE:
           builder.append("@alliance.evemail.orbital.enterprises>");
+          break;
         case MAILING_LIST:
           builder.append("@ml.evemail.orbital.enterprises>");
+          break;
       }
-      if (i < recipients.size() - 1) builder.append(", ");
+      if (i < count - 1) builder.append(", ");
     }
     builder.append("\r\n");
-    builder.append("Subject: ").append(subject).append("\r\n");
-    SimpleDateFormat format = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
-    builder.append("Date: ").append(format.format(timestamp)).append("\r\n");
+    builder.append("Subject: ").append(store.getSubject(row)).append("\r\n");
+    builder.append("Date: ").append(RFC822_DATE.print(store.getTimestamp(row))).append("\r\n");
     builder.append("Message-ID: <").append(messageID).append("@evemail.orbital.enterprises>\r\n");
+    // Blank line separating header from body
+    builder.append("\r\n");
     return builder.toString();
   }
 
+  /**
+   * Header content is fixed once the message is constructed, so we render it once and serve all
+   * content and size accessors from the same encoded buffer.  Callers must not modify the result.
+   *
+   * @return the UTF-8 encoded header.
+   */
+  protected byte[] getHeader() {
+    byte[] result = rendered.header;
+    if (result == null) {
+      result = renderHeader().getBytes(UTF_8);
+      rendered.header = result;
+    }
+    return result;
+  }
+
+  protected static int countLines(String data) {
+    int count = 0;
+    for (int i = data.indexOf("\r\n"); i >= 0; i = data.indexOf("\r\n", i + 2)) count++;
+    return count;
+  }
+
   @Override
   public MessageId getMessageId() {
     return InMemoryMessageId.of(messageID);
@@ -217,12 +267,12 @@ public class EveMessage implements Message {
 
   @Override
   public Date getInternalDate() {
-    return timestamp.toDate();
+    return new Date(store.getTimestamp(row));
   }
 
   @Override
   public InputStream getBodyContent() throws IOException {
-    return new ByteArrayInputStream(getBody().getBytes(Charset.forName("UTF-8")));
+    return new ByteArrayInputStream(getBodyBytes());
   }
 
   @Override
@@ -238,7 +288,7 @@ public class EveMessage implements Message {
   @Override
   public long getBodyOctets() {
     try {
-      return getBody().length();
+      return getBodyBytes().length;
     } catch (IOException e) {
       return 0;
     }
@@ -246,39 +296,27 @@ public class EveMessage implements Message {
 
   @Override
   public long getFullContentOctets() {
-    try {
-      return (getHeader() + getBody()).length();
-    } catch (IOException e) {
-      return getHeader().length();
-    }
+    return getHeader().length + getBodyOctets();
   }
 
   @Override
   public Long getTextualLineCount() {
-    String assembly = getHeader();
     try {
-      assembly += getBody();
+      return (long) countLines(getBody());
     } catch (IOException e) {
-      // ignore
-    }
-    int count = 0;
-    int i = assembly.indexOf("\r\n");
-    while (i >= 0) {
-      count++;
-      i = assembly.indexOf("\r\n", i);
+      return 0L;
     }
-    return (long) count;
   }
 
   @Override
   public InputStream getHeaderContent() throws IOException {
-    return new ByteArrayInputStream(getHeader().getBytes(Charset.forName("UTF-8")));
+    return new ByteArrayInputStream(getHeader());
   }
 
   @Override
   public InputStream getFullContent() throws IOException {
-    String assembly = getHeader() + getBody();
-    return new ByteArrayInputStream(assembly.getBytes(Charset.forName("UTF-8")));
+    // Stream directly over the cached buffers rather than assembling a copy
+    return new SequenceInputStream(new ByteArrayInputStream(getHeader()), new ByteArrayInputStream(getBodyBytes()));
   }
 
   @Override
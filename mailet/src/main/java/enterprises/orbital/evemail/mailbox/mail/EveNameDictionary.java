@@ -0,0 +1,53 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary of sender and recipient names referenced by stored mail headers.  Headers
+ * keep only entity IDs; names are looked up here when a header is rendered.  Each distinct name string
+ * is held once no matter how many entities or headers share it.  Unlike EveNameCache, entries are never
+ * evicted, since stored headers depend on them and the set of entities a user corresponds with is small.
+ */
+public class EveNameDictionary {
+  private static final EveNameDictionary instance = new EveNameDictionary();
+
+  private final Map<Long, String> names = new ConcurrentHashMap<>();
+  private final Map<String, String> interned = new ConcurrentHashMap<>();
+
+  public static EveNameDictionary getInstance() {
+    return instance;
+  }
+
+  private static long key(EveMessage.EveRecipientType type, int id) {
+    return ((long) type.ordinal() << 32) | (id & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Record the name of an entity.  Null names are ignored.
+   *
+   * @param type entity type.
+   * @param id entity ID.
+   * @param name entity name.
+   */
+  public void put(EveMessage.EveRecipientType type, int id, String name) {
+    if (name == null) return;
+    String shared = interned.putIfAbsent(name, name);
+    names.put(key(type, id), shared == null ? name : shared);
+  }
+
+  /**
+   * Look up the name of an entity.
+   *
+   * @param type entity type.
+   * @param id entity ID.
+   * @return the entity name, or null if unknown.
+   */
+  public String get(EveMessage.EveRecipientType type, int id) {
+    return names.get(key(type, id));
+  }
+
+  public int size() {
+    return names.size();
+  }
+}
@@ -0,0 +1,192 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.*;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import enterprises.orbital.evemail.esi.EveNameCache;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the sender and recipient names for a batch of mail headers.  Headers are added first, then
+ * {@link #resolve()} issues as few bulk name calls as possible (chunked to the ESI maximum for each
+ * endpoint).  Once resolved, EveMessage instances can be constructed without further ESI calls.
+ * Character, corporation and alliance names are served from the shared {@link EveNameCache} where
+ * possible, and names retrieved from ESI are stored back into the cache.
+ */
+public class EveNameResolver {
+  private static final Logger log = Logger.getLogger(EveNameResolver.class.getName());
+
+  // Maximum number of IDs ESI accepts in a single call to each names endpoint
+  public static final int MAX_CHARACTER_IDS = 1000;
+  public static final int MAX_CORPORATION_IDS = 100;
+  public static final int MAX_ALLIANCE_IDS = 100;
+
+  protected final int characterID;
+  protected final Set<Long> characters = new HashSet<>();
+  protected final Set<Long> corporations = new HashSet<>();
+  protected final Set<Long> alliances = new HashSet<>();
+  protected final Set<Long> mailingLists = new HashSet<>();
+  protected final Map<Long, String> characterNames = new HashMap<>();
+  protected final Map<Long, String> corporationNames = new HashMap<>();
+  protected final Map<Long, String> allianceNames = new HashMap<>();
+  protected final Map<Long, String> mailingListNames = new HashMap<>();
+
+  /**
+   * Create a resolver for headers retrieved on behalf of the given character.
+   *
+   * @param characterID the character which owns the headers (needed to resolve mailing lists).
+   */
+  public EveNameResolver(int characterID) {
+    this.characterID = characterID;
+  }
+
+  /**
+   * Queue the sender and all recipients of a header for resolution.
+   *
+   * @param header the header to add.
+   */
+  public void addHeader(GetCharactersCharacterIdMail200Ok header) {
+    characters.add((long) header.getFrom());
+    for (GetCharactersCharacterIdMailRecipient i : header.getRecipients()) {
+      long id = i.getRecipientId();
+      switch (i.getRecipientType()) {
+        case ALLIANCE:
+          alliances.add(id);
+          break;
+
+        case CHARACTER:
+          characters.add(id);
+          break;
+
+        case CORPORATION:
+          corporations.add(id);
+          break;
+
+        case MAILING_LIST:
+          mailingLists.add(id);
+          break;
+
+        default:
+          // Should never happen
+          throw new RuntimeException("Unknown recipient type " + i.getRecipientType());
+      }
+    }
+  }
+
+  /**
+   * Resolve all queued IDs which have not already been resolved.  Failures are logged and leave
+   * the affected IDs unresolved.  All name calls are issued together and run concurrently.
+   */
+  public void resolve() {
+    EveAsyncClient client = EveAsyncClient.getInstance();
+    EveNameCache cache = EveNameCache.getInstance();
+
+    // Issue every chunk for every entity type before waiting on any of them
+    Map<List<Long>, CompletableFuture<List<GetCharactersNames200Ok>>> characterCalls = new LinkedHashMap<>();
+    for (List<Long> chunk : chunk(unresolved(characters, characterNames, cache, EveNameCache.EntityType.CHARACTER), MAX_CHARACTER_IDS))
+      characterCalls.put(chunk, client.getCharacterNames(chunk));
+    Map<List<Long>, CompletableFuture<List<GetCorporationsNames200Ok>>> corporationCalls = new LinkedHashMap<>();
+    for (List<Long> chunk : chunk(unresolved(corporations, corporationNames, cache, EveNameCache.EntityType.CORPORATION), MAX_CORPORATION_IDS))
+      corporationCalls.put(chunk, client.getCorporationNames(chunk));
+    Map<List<Long>, CompletableFuture<List<GetAlliancesNames200Ok>>> allianceCalls = new LinkedHashMap<>();
+    for (List<Long> chunk : chunk(unresolved(alliances, allianceNames, cache, EveNameCache.EntityType.ALLIANCE), MAX_ALLIANCE_IDS))
+      allianceCalls.put(chunk, client.getAllianceNames(chunk));
+
+    for (Map.Entry<List<Long>, CompletableFuture<List<GetCharactersNames200Ok>>> next : characterCalls.entrySet()) {
+      try {
+        for (GetCharactersNames200Ok i : EveAsyncClient.await(next.getValue()))
+          characterNames.put(i.getCharacterId().longValue(), i.getCharacterName());
+        cacheAll(next.getKey(), characterNames, cache, EveNameCache.EntityType.CHARACTER);
+      } catch (ApiException | IOException e) {
+        log.log(Level.WARNING, "Unable to resolve character IDs: " + next.getKey(), e);
+      }
+    }
+
+    for (Map.Entry<List<Long>, CompletableFuture<List<GetCorporationsNames200Ok>>> next : corporationCalls.entrySet()) {
+      try {
+        for (GetCorporationsNames200Ok i : EveAsyncClient.await(next.getValue()))
+          corporationNames.put(i.getCorporationId().longValue(), i.getCorporationName());
+        cacheAll(next.getKey(), corporationNames, cache, EveNameCache.EntityType.CORPORATION);
+      } catch (ApiException | IOException e) {
+        log.log(Level.WARNING, "Unable to resolve corporation IDs: " + next.getKey(), e);
+      }
+    }
+
+    for (Map.Entry<List<Long>, CompletableFuture<List<GetAlliancesNames200Ok>>> next : allianceCalls.entrySet()) {
+      try {
+        for (GetAlliancesNames200Ok i : EveAsyncClient.await(next.getValue()))
+          allianceNames.put(i.getAllianceId().longValue(), i.getAllianceName());
+        cacheAll(next.getKey(), allianceNames, cache, EveNameCache.EntityType.ALLIANCE);
+      } catch (ApiException | IOException e) {
+        log.log(Level.WARNING, "Unable to resolve alliance IDs: " + next.getKey(), e);
+      }
+    }
+
+    // Mailing lists are only visible to the owning character and are served from its directory
+    EveMailingListDirectory directory = EveMailingListDirectory.getDirectory(characterID);
+    for (Long next : unresolved(mailingLists, mailingListNames)) {
+      String name = directory.getName(next.intValue());
+      if (name != null) mailingListNames.put(next, name);
+    }
+  }
+
+  public String getCharacterName(int id) {
+    return characterNames.get((long) id);
+  }
+
+  public String getCorporationName(int id) {
+    return corporationNames.get((long) id);
+  }
+
+  public String getAllianceName(int id) {
+    return allianceNames.get((long) id);
+  }
+
+  public String getMailingListName(int id) {
+    return mailingListNames.get((long) id);
+  }
+
+  protected static List<Long> unresolved(Set<Long> ids, Map<Long, String> names) {
+    List<Long> result = new ArrayList<>();
+    for (Long next : ids) {
+      if (!names.containsKey(next)) result.add(next);
+    }
+    return result;
+  }
+
+  /**
+   * Fill names from the cache and return the IDs which still require an ESI call.
+   */
+  protected static List<Long> unresolved(Set<Long> ids, Map<Long, String> names, EveNameCache cache,
+                                         EveNameCache.EntityType type) {
+    List<Long> result = new ArrayList<>();
+    for (Long next : unresolved(ids, names)) {
+      String cached = cache.getName(type, next);
+      if (cached != null)
+        names.put(next, cached);
+      else
+        result.add(next);
+    }
+    return result;
+  }
+
+  protected static void cacheAll(List<Long> ids, Map<Long, String> names, EveNameCache cache,
+                                 EveNameCache.EntityType type) {
+    for (Long next : ids) {
+      String name = names.get(next);
+      if (name != null) cache.put(type, next, name);
+    }
+  }
+
+  protected static <T> List<List<T>> chunk(List<T> source, int size) {
+    List<List<T>> result = new ArrayList<>();
+    for (int i = 0; i < source.size(); i += size)
+      result.add(source.subList(i, Math.min(source.size(), i + size)));
+    return result;
+  }
+}
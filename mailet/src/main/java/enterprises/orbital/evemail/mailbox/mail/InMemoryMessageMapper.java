@@ -40,26 +40,21 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemoryMessageMapper extends AbstractMessageMapper {
-    private final Map<InMemoryId, Map<MessageUid, MailboxMessage>> mailboxByUid;
+    private final Map<InMemoryId, MailboxMembership> mailboxByUid;
     private static final int INITIAL_SIZE = 256;
 
     public InMemoryMessageMapper(MailboxSession session, UidProvider uidProvider,
             ModSeqProvider modSeqProvider) {
         super(session, uidProvider, modSeqProvider);
-        this.mailboxByUid = new ConcurrentHashMap<InMemoryId, Map<MessageUid, MailboxMessage>>(INITIAL_SIZE);
+        this.mailboxByUid = new ConcurrentHashMap<InMemoryId, MailboxMembership>(INITIAL_SIZE);
     }
 
-    private Map<MessageUid, MailboxMessage> getMembershipByUidForMailbox(Mailbox mailbox) {
+    private MailboxMembership getMembershipByUidForMailbox(Mailbox mailbox) {
         return getMembershipByUidForId((InMemoryId) mailbox.getMailboxId());
     }
 
-    private Map<MessageUid, MailboxMessage> getMembershipByUidForId(InMemoryId id) {
-        Map<MessageUid, MailboxMessage> membershipByUid = mailboxByUid.get(id);
-        if (membershipByUid == null) {
-            membershipByUid = new ConcurrentHashMap<MessageUid, MailboxMessage>(INITIAL_SIZE);
-            mailboxByUid.put(id, membershipByUid);
-        }
-        return membershipByUid;
+    private MailboxMembership getMembershipByUidForId(InMemoryId id) {
+        return mailboxByUid.computeIfAbsent(id, k -> new MailboxMembership());
     }
 
     @Override
@@ -69,13 +64,7 @@ public class InMemoryMessageMapper extends AbstractMessageMapper {
 
     @Override
     public long countUnseenMessagesInMailbox(Mailbox mailbox) throws MailboxException {
-        long count = 0;
-        for (MailboxMessage member : getMembershipByUidForMailbox(mailbox).values()) {
-            if (!member.isSeen()) {
-                count++;
-            }
-        }
-        return count;
+        return getMembershipByUidForMailbox(mailbox).countUnseen();
     }
 
     @Override
@@ -95,44 +84,17 @@ public class InMemoryMessageMapper extends AbstractMessageMapper {
     @Override
     public Iterator<MailboxMessage> findInMailbox(Mailbox mailbox, MessageRange set, FetchType ftype, int max)
             throws MailboxException {
-        List<MailboxMessage> results = new ArrayList<MailboxMessage>(getMembershipByUidForMailbox(mailbox).values());
-        for (Iterator<MailboxMessage> it = results.iterator(); it.hasNext();) {
-            if (!set.includes(it.next().getUid())) {
-                it.remove();
-            }
-        }
-        
-        Collections.sort(results);
-
-        if (max > 0 && results.size() > max) {
-            results = results.subList(0, max);
-        }
-        return results.iterator();
+        return UidRanges.iterator(getMembershipByUidForMailbox(mailbox).byUid(), set, max);
     }
 
     @Override
     public List<MessageUid> findRecentMessageUidsInMailbox(Mailbox mailbox) throws MailboxException {
-        final List<MessageUid> results = new ArrayList<MessageUid>();
-        for (MailboxMessage member : getMembershipByUidForMailbox(mailbox).values()) {
-            if (member.isRecent()) {
-                results.add(member.getUid());
-            }
-        }
-        Collections.sort(results);
-
-        return results;
+        return getMembershipByUidForMailbox(mailbox).recentUids();
     }
 
     @Override
     public MessageUid findFirstUnseenMessageUid(Mailbox mailbox) throws MailboxException {
-        List<MailboxMessage> memberships = new ArrayList<MailboxMessage>(getMembershipByUidForMailbox(mailbox).values());
-        Collections.sort(memberships);
-        for (MailboxMessage m : memberships) {
-            if (m.isSeen() == false) {
-                return m.getUid();
-            }
-        }
-        return null;
+        return getMembershipByUidForMailbox(mailbox).firstUnseen();
     }
 
     @Override
@@ -154,7 +116,7 @@ public class InMemoryMessageMapper extends AbstractMessageMapper {
 
     @Override
     public Flags getApplicableFlag(Mailbox mailbox) throws MailboxException {
-        return new ApplicableFlagCalculator(getMembershipByUidForId((InMemoryId) mailbox.getMailboxId()).values())
+        return new ApplicableFlagCalculator(getMembershipByUidForId((InMemoryId) mailbox.getMailboxId()).byUid().values())
             .computeApplicableFlags();
     }
 
@@ -186,7 +148,7 @@ public class InMemoryMessageMapper extends AbstractMessageMapper {
         SimpleMailboxMessage copy = SimpleMailboxMessage.copy(mailbox.getMailboxId(), message);
         copy.setUid(message.getUid());
         copy.setModSeq(message.getModSeq());
-        getMembershipByUidForMailbox(mailbox).put(message.getUid(), copy);
+        getMembershipByUidForMailbox(mailbox).put(copy);
 
         return new SimpleMessageMetaData(message);
     }
@@ -0,0 +1,125 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import com.google.common.base.Optional;
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * UID provider which uses the EVE mail ID as the UID of every EVE mail in the reserved mailboxes (INBOX,
+ * Sent, [Corp] and [Alliance]).  Mail only arrives in these as it is sent or received, and mail IDs
+ * increase for each new mail, so they satisfy the IMAP requirement that UIDs ascend.  Every node derives
+ * the same UID for the same mail without any shared or persistent state.
+ * <p>
+ * User labels can be applied to old mail, whose mail ID is below UIDNEXT and would never be fetched by
+ * a client.  Their UIDs are assigned by a separate provider instead, normally {@link PersistentUidProvider}.
+ * <p>
+ * Messages which don't come from EVE (e.g. in Trash or Bounced) are numbered after the highest UID seen
+ * in their mailbox.  Those mailboxes only live in memory, so their UIDVALIDITY changes on restart.
+ */
+public class MailIdUidProvider implements EveMailUidProvider {
+    // Low 32 bits of the IDs of reserved mailboxes, see systemMailboxId
+    private static final Set<Long> systemNameHashes = new HashSet<>();
+
+    static {
+        for (String name : EveMailMailboxMapper.reservedMailboxNames) {
+            if (!systemNameHashes.add(nameHash(name)))
+                throw new IllegalStateException("Reserved mailbox name " + name + " collides with another reserved name");
+        }
+    }
+
+    private final ConcurrentMap<InMemoryId, AtomicLong> map = new ConcurrentHashMap<InMemoryId, AtomicLong>();
+    private final EveMailUidProvider labels;
+
+    /**
+     * @param labels provider for the UIDs of user labels.
+     */
+    public MailIdUidProvider(EveMailUidProvider labels) {
+        this.labels = labels;
+    }
+
+    private static long nameHash(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Derive the ID of a reserved mailbox from the owning character and mailbox name, so every node
+     * agrees on it.  Reserved names are checked not to collide when this class loads.
+     *
+     * @param characterID the owning character.
+     * @param name a reserved mailbox name.
+     * @return the mailbox ID.
+     */
+    public static InMemoryId systemMailboxId(int characterID, String name) {
+        if (!EveMailMailboxMapper.reservedMailboxNames.contains(name))
+            throw new IllegalArgumentException("Not a reserved mailbox name: " + name);
+        return InMemoryId.of(((long) characterID << 32) | nameHash(name));
+    }
+
+    /**
+     * @param mailboxId a mailbox ID.
+     * @return true if the ID was derived by {@link #systemMailboxId(int, String)}.  IDs recorded in the
+     * mailbox state log are small sequence numbers, so never have the character ID in their high bits.
+     */
+    public static boolean isSystemMailbox(MailboxId mailboxId) {
+        long raw = ((InMemoryId) mailboxId).getRawId();
+        return (raw >>> 32) != 0 && systemNameHashes.contains(raw & 0xffffffffL);
+    }
+
+    @Override
+    public MessageUid nextUid(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return nextUid(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public MessageUid nextUid(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        if (!isSystemMailbox(mailboxId)) return labels.nextUid(session, mailboxId);
+        return MessageUid.of(getLast((InMemoryId) mailboxId).incrementAndGet());
+    }
+
+    @Override
+    public Optional<MessageUid> lastUid(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        if (!isSystemMailbox(mailbox.getMailboxId())) return labels.lastUid(session, mailbox);
+        AtomicLong last = map.get((InMemoryId) mailbox.getMailboxId());
+        if (last == null || last.get() == 0) {
+            return Optional.absent();
+        }
+        return Optional.of(MessageUid.of(last.get()));
+    }
+
+    @Override
+    public MessageUid uidFor(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException {
+        if (!isSystemMailbox(mailboxId)) return labels.uidFor(session, mailboxId, mailID);
+        // Track the highest UID handed out so UIDNEXT stays above every mail
+        getLast((InMemoryId) mailboxId).accumulateAndGet(mailID, Math::max);
+        return MessageUid.of(mailID);
+    }
+
+    @Override
+    public void forget(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException {
+        // Nothing to release for reserved mailboxes, UIDs are derived
+        if (!isSystemMailbox(mailboxId)) labels.forget(session, mailboxId, mailID);
+    }
+
+    @Override
+    public void sync() throws MailboxException {
+        labels.sync();
+    }
+
+    private AtomicLong getLast(InMemoryId id) {
+        return map.computeIfAbsent(id, k -> new AtomicLong(0));
+    }
+}
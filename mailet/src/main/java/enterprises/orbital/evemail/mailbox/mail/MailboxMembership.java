@@ -0,0 +1,81 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.store.mail.model.MailboxMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Messages of a single mailbox ordered by UID, along with ordered sets of unseen and recent UIDs and
+ * counts of messages and unseen messages.  The sets and counts are updated whenever a message is put
+ * or removed, so a message whose flags change must be put again.  Flag changes made through
+ * AbstractMessageMapper.updateFlags always end in a save, which does this.
+ */
+public class MailboxMembership {
+    private final NavigableMap<MessageUid, MailboxMessage> byUid = new ConcurrentSkipListMap<>();
+    private final NavigableSet<MessageUid> unseen = new ConcurrentSkipListSet<>();
+    private final NavigableSet<MessageUid> recent = new ConcurrentSkipListSet<>();
+    // Skip list sizes are linear, so counts are kept separately
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger unseenCount = new AtomicInteger();
+
+    /**
+     * Add or replace a message and index its current flags.
+     *
+     * @param message the message to store.
+     */
+    public void put(MailboxMessage message) {
+        MessageUid uid = message.getUid();
+        if (byUid.put(uid, message) == null) count.incrementAndGet();
+        if (message.isSeen()) {
+            if (unseen.remove(uid)) unseenCount.decrementAndGet();
+        } else {
+            if (unseen.add(uid)) unseenCount.incrementAndGet();
+        }
+        if (message.isRecent()) recent.add(uid);
+        else recent.remove(uid);
+    }
+
+    /**
+     * Remove a message.
+     *
+     * @param uid UID of the message to remove.
+     * @return the removed message, or null if not present.
+     */
+    public MailboxMessage remove(MessageUid uid) {
+        MailboxMessage removed = byUid.remove(uid);
+        if (removed != null) count.decrementAndGet();
+        if (unseen.remove(uid)) unseenCount.decrementAndGet();
+        recent.remove(uid);
+        return removed;
+    }
+
+    /**
+     * @return messages ordered by UID.  Callers must not modify the map directly.
+     */
+    public NavigableMap<MessageUid, MailboxMessage> byUid() {
+        return byUid;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public int countUnseen() {
+        return unseenCount.get();
+    }
+
+    public MessageUid firstUnseen() {
+        return unseen.isEmpty() ? null : unseen.first();
+    }
+
+    public List<MessageUid> recentUids() {
+        return new ArrayList<>(recent);
+    }
+}
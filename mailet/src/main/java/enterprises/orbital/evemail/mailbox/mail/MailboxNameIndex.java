@@ -0,0 +1,160 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Character trie of mailbox names.  Each mailbox is keyed by its namespace, user and name, so prefix
+ * lookups (children of a mailbox) and wildcard patterns with a literal prefix only visit the part of
+ * the trie which can match.  Every node tracks the number of mailboxes beneath it so empty subtrees
+ * are never visited.
+ * <p>
+ * Writes must be externally serialized.  Reads may run concurrently with writes and see a weakly
+ * consistent view.
+ */
+public class MailboxNameIndex {
+    // Marks a wildcard position in a compiled pattern
+    private static final char WILDCARD = '\uffff';
+    private static final int MAX_CACHED_PATTERNS = 1024;
+    private static final Map<String, char[]> patterns = new ConcurrentHashMap<>();
+
+    private static class Node {
+        final Map<Character, Node> children = new ConcurrentHashMap<>();
+        final AtomicInteger size = new AtomicInteger();
+        volatile Mailbox mailbox;
+    }
+
+    private final Node root = new Node();
+
+    private static String owner(String namespace, String user) {
+        // NUL can't appear in a mailbox name, so owners never run into names
+        return (namespace == null ? "" : namespace) + '\0' + (user == null ? "" : user) + '\0';
+    }
+
+    private static String key(MailboxPath path) {
+        return owner(path.getNamespace(), path.getUser()) + path.getName();
+    }
+
+    private Node find(String key) {
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) node = node.children.get(key.charAt(i));
+        return node;
+    }
+
+    public void put(MailboxPath path, Mailbox mailbox) {
+        String key = key(path);
+        Node existing = find(key);
+        if (existing != null && existing.mailbox != null) {
+            existing.mailbox = mailbox;
+            return;
+        }
+        Node node = root;
+        node.size.incrementAndGet();
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+            node.size.incrementAndGet();
+        }
+        node.mailbox = mailbox;
+    }
+
+    public void remove(MailboxPath path) {
+        String key = key(path);
+        Node target = find(key);
+        if (target == null || target.mailbox == null) return;
+        target.mailbox = null;
+        Node node = root;
+        node.size.decrementAndGet();
+        for (int i = 0; i < key.length(); i++) {
+            Node next = node.children.get(key.charAt(i));
+            if (next.size.decrementAndGet() == 0) {
+                // Nothing left below here
+                node.children.remove(key.charAt(i));
+                return;
+            }
+            node = next;
+        }
+    }
+
+    public void clear() {
+        root.children.clear();
+        root.size.set(0);
+    }
+
+    /**
+     * Determine whether any mailbox has a name starting with the given prefix.
+     *
+     * @param namespace mailbox namespace.
+     * @param user mailbox user.
+     * @param prefix name prefix.
+     * @return true if at least one mailbox name starts with prefix.
+     */
+    public boolean hasPrefix(String namespace, String user, String prefix) {
+        Node node = find(owner(namespace, user) + prefix);
+        return node != null && node.size.get() > 0;
+    }
+
+    /**
+     * Find all mailboxes owned by the given namespace and user whose names match a pattern.  Both '%'
+     * and '*' match any sequence of characters, including the hierarchy delimiter.  All other
+     * characters match literally.
+     *
+     * @param namespace mailbox namespace.
+     * @param user mailbox user.
+     * @param pattern name pattern.
+     * @return matching mailboxes.
+     */
+    public List<Mailbox> match(String namespace, String user, String pattern) {
+        List<Mailbox> results = new ArrayList<>();
+        Node start = find(owner(namespace, user));
+        if (start == null) return results;
+        char[] compiled = compile(pattern);
+        match(start, compiled, 0, results, new IdentityHashMap<>());
+        return results;
+    }
+
+    private static char[] compile(String pattern) {
+        char[] compiled = patterns.get(pattern);
+        if (compiled != null) return compiled;
+        StringBuilder out = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '%' || c == '*') {
+                // Adjacent wildcards are equivalent to one
+                if (out.length() == 0 || out.charAt(out.length() - 1) != WILDCARD) out.append(WILDCARD);
+            } else {
+                out.append(c);
+            }
+        }
+        compiled = out.toString().toCharArray();
+        if (patterns.size() >= MAX_CACHED_PATTERNS) patterns.clear();
+        patterns.put(pattern, compiled);
+        return compiled;
+    }
+
+    private static void match(Node node, char[] pattern, int pos, List<Mailbox> results, Map<Node, BitSet> visited) {
+        if (node.size.get() == 0) return;
+        // With several wildcards a node can be reached at the same pattern position along different
+        // paths, only expand it once so results aren't duplicated
+        BitSet seen = visited.computeIfAbsent(node, n -> new BitSet(pattern.length + 1));
+        if (seen.get(pos)) return;
+        seen.set(pos);
+        if (pos == pattern.length) {
+            Mailbox mailbox = node.mailbox;
+            if (mailbox != null) results.add(mailbox);
+            return;
+        }
+        char c = pattern[pos];
+        if (c != WILDCARD) {
+            Node next = node.children.get(c);
+            if (next != null) match(next, pattern, pos + 1, results, visited);
+            return;
+        }
+        // Wildcard matches the empty string here, or swallows one more character
+        match(node, pattern, pos + 1, results, visited);
+        for (Node next : node.children.values()) match(next, pattern, pos, results, visited);
+    }
+}
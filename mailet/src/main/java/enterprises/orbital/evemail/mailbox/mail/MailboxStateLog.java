@@ -0,0 +1,470 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.base.OrbitalProperties;
+import org.apache.james.mailbox.exception.MailboxException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Durable mailbox state: mailbox IDs and UIDVALIDITY by (character, mailbox name), the UID and ModSeq
+ * counters of each mailbox, and the UID assigned to each EVE mail in each mailbox.  With this state
+ * surviving a restart, an unchanged (character, label, mail ID) keeps its UID and IMAP clients keep their
+ * local caches.
+ * <p>
+ * State is kept in memory and recorded in an append-only log which is replayed and compacted on startup.
+ * UID and ModSeq counters are leased in blocks: the end of each block is synced to the log before any
+ * value in the block is handed out, and counters resume from the end of the last lease after a restart.
+ * Values are therefore never reused, at the cost of a gap after each restart.  New mailboxes and leases
+ * are synced immediately, UID assignments are synced by {@link #sync()} at the end of each batch.
+ * <p>
+ * Deleted mailboxes are forgotten along with their counters and UID assignments, so a mailbox created
+ * again under the same name gets a new ID and none of the old mailbox's state.
+ */
+public class MailboxStateLog {
+    private static final Logger log = Logger.getLogger(MailboxStateLog.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String PROP_MAILBOX_STATE_DIR = "enterprises.orbital.evemail.mailboxStateDir";
+    public static final String DEF_MAILBOX_STATE_DIR = "var/evemail/mailbox";
+
+    private static final String LOG_FILE = "mailbox.log";
+    private static final byte RECORD_MAILBOX = 'M';
+    private static final byte RECORD_UID_LEASE = 'L';
+    private static final byte RECORD_MODSEQ_LEASE = 'Q';
+    private static final byte RECORD_ASSIGN = 'A';
+    private static final byte RECORD_FORGET = 'F';
+    private static final byte RECORD_DELETE = 'D';
+    private static final long LEASE_BLOCK = 1000L;
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+    // Compact once the log holds this many more records than live state
+    private static final long COMPACT_THRESHOLD = 100000L;
+
+    private static volatile MailboxStateLog instance;
+
+    /**
+     * Stable identity of a mailbox.
+     */
+    public static class MailboxRecord {
+        private final long id;
+        private final int characterID;
+        private final String name;
+        private final long uidValidity;
+
+        MailboxRecord(long id, int characterID, String name, long uidValidity) {
+            this.id = id;
+            this.characterID = characterID;
+            this.name = name;
+            this.uidValidity = uidValidity;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getUidValidity() {
+            return uidValidity;
+        }
+    }
+
+    private static class Counters {
+        long lastUid;
+        long uidLease;
+        long modSeq;
+        long modSeqLease;
+        final Map<Long, Long> uidByMailID = new HashMap<>();
+    }
+
+    private final File dir;
+    private final Random random = new SecureRandom();
+    private final Map<String, MailboxRecord> mailboxesByName = new HashMap<>();
+    private final Map<Long, MailboxRecord> mailboxesById = new HashMap<>();
+    private final Map<Long, Counters> counters = new HashMap<>();
+    private long nextMailboxId = 1;
+    private long assignments;
+    private long records;
+    private FileOutputStream logFile;
+    private DataOutputStream out;
+
+    /**
+     * Open the shared state log if it is not already open.
+     *
+     * @return the shared state log.
+     * @throws MailboxException if the log could not be opened.
+     */
+    public static MailboxStateLog getInstance() throws MailboxException {
+        if (instance == null) {
+            synchronized (MailboxStateLog.class) {
+                if (instance == null) {
+                    File dir = new File(OrbitalProperties.getGlobalProperty(PROP_MAILBOX_STATE_DIR, DEF_MAILBOX_STATE_DIR));
+                    try {
+                        instance = new MailboxStateLog(dir);
+                    } catch (IOException e) {
+                        throw new MailboxException("Unable to open mailbox state in " + dir, e);
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Package access so tests can open a log in a scratch directory
+    MailboxStateLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create mailbox state directory " + dir);
+        load();
+    }
+
+    private static String key(int characterID, String name) {
+        return characterID + "/" + name;
+    }
+
+    /**
+     * Retrieve the identity of a mailbox, creating a new ID and UIDVALIDITY if the mailbox is new.
+     *
+     * @param characterID owning character.
+     * @param name mailbox name.
+     * @return the mailbox identity.
+     * @throws MailboxException if a new mailbox could not be recorded.
+     */
+    public synchronized MailboxRecord mailbox(int characterID, String name) throws MailboxException {
+        MailboxRecord existing = mailboxesByName.get(key(characterID, name));
+        if (existing != null) return existing;
+        // UIDVALIDITY is a non-zero 32 bit unsigned value
+        return record(new MailboxRecord(nextMailboxId++, characterID, name, 1 + random.nextInt(Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Record a mailbox created with its own UIDVALIDITY.  A previously known mailbox with the same name
+     * and UIDVALIDITY keeps its ID.  A different UIDVALIDITY means a new mailbox, so the old one is
+     * forgotten and a new ID allocated.
+     *
+     * @param characterID owning character.
+     * @param name mailbox name.
+     * @param uidValidity UIDVALIDITY of the mailbox.
+     * @return the mailbox identity.
+     * @throws MailboxException if the mailbox could not be recorded.
+     */
+    public synchronized MailboxRecord register(int characterID, String name, long uidValidity) throws MailboxException {
+        MailboxRecord existing = mailboxesByName.get(key(characterID, name));
+        if (existing != null) {
+            if (existing.uidValidity == uidValidity) return existing;
+            delete(existing.id);
+        }
+        return record(new MailboxRecord(nextMailboxId++, characterID, name, uidValidity));
+    }
+
+    /**
+     * Forget a deleted mailbox together with its counters and UID assignments.
+     *
+     * @param id mailbox ID.
+     * @throws MailboxException if the deletion could not be recorded.
+     */
+    public synchronized void delete(long id) throws MailboxException {
+        MailboxRecord existing = mailboxesById.get(id);
+        if (existing == null) return;
+        try {
+            out.writeByte(RECORD_DELETE);
+            out.writeLong(id);
+            records++;
+            sync();
+        } catch (IOException e) {
+            throw new MailboxException("Unable to record deletion of mailbox " + existing.name, e);
+        }
+        unindex(id);
+    }
+
+    /**
+     * Record a new name for an existing mailbox.
+     *
+     * @param id mailbox ID.
+     * @param name new mailbox name.
+     * @throws MailboxException if the change could not be recorded.
+     */
+    public synchronized void rename(long id, String name) throws MailboxException {
+        MailboxRecord existing = mailboxesById.get(id);
+        if (existing == null || existing.name.equals(name)) return;
+        record(new MailboxRecord(id, existing.characterID, name, existing.uidValidity));
+    }
+
+    private MailboxRecord record(MailboxRecord mailbox) throws MailboxException {
+        try {
+            writeMailbox(out, mailbox);
+            records++;
+            sync();
+        } catch (IOException e) {
+            throw new MailboxException("Unable to record mailbox " + mailbox.name, e);
+        }
+        index(mailbox);
+        return mailbox;
+    }
+
+    private void index(MailboxRecord mailbox) {
+        MailboxRecord previous = mailboxesById.put(mailbox.id, mailbox);
+        if (previous != null) mailboxesByName.remove(key(previous.characterID, previous.name), previous);
+        mailboxesByName.put(key(mailbox.characterID, mailbox.name), mailbox);
+        nextMailboxId = Math.max(nextMailboxId, mailbox.id + 1);
+    }
+
+    private void unindex(long id) {
+        MailboxRecord previous = mailboxesById.remove(id);
+        if (previous != null) mailboxesByName.remove(key(previous.characterID, previous.name), previous);
+        Counters state = counters.remove(id);
+        if (state != null) assignments -= state.uidByMailID.size();
+    }
+
+    private Counters counters(long mailboxId) {
+        return counters.computeIfAbsent(mailboxId, k -> new Counters());
+    }
+
+    /**
+     * Allocate the next UID of a mailbox.
+     *
+     * @param mailboxId mailbox ID.
+     * @return the new UID.
+     * @throws MailboxException if a new lease could not be recorded.
+     */
+    public synchronized long nextUid(long mailboxId) throws MailboxException {
+        Counters next = counters(mailboxId);
+        long uid = next.lastUid + 1;
+        if (uid > next.uidLease) {
+            lease(RECORD_UID_LEASE, mailboxId, uid + LEASE_BLOCK - 1);
+            next.uidLease = uid + LEASE_BLOCK - 1;
+        }
+        next.lastUid = uid;
+        return uid;
+    }
+
+    /**
+     * @param mailboxId mailbox ID.
+     * @return the last UID allocated in a mailbox, or 0 if none have been.
+     */
+    public synchronized long lastUid(long mailboxId) {
+        Counters next = counters.get(mailboxId);
+        return next == null ? 0 : next.lastUid;
+    }
+
+    /**
+     * Allocate the next ModSeq of a mailbox.
+     *
+     * @param mailboxId mailbox ID.
+     * @return the new ModSeq.
+     * @throws MailboxException if a new lease could not be recorded.
+     */
+    public synchronized long nextModSeq(long mailboxId) throws MailboxException {
+        Counters next = counters(mailboxId);
+        long modSeq = next.modSeq + 1;
+        if (modSeq > next.modSeqLease) {
+            lease(RECORD_MODSEQ_LEASE, mailboxId, modSeq + LEASE_BLOCK - 1);
+            next.modSeqLease = modSeq + LEASE_BLOCK - 1;
+        }
+        next.modSeq = modSeq;
+        return modSeq;
+    }
+
+    /**
+     * @param mailboxId mailbox ID.
+     * @return the highest ModSeq allocated in a mailbox, or 0 if none have been.
+     */
+    public synchronized long highestModSeq(long mailboxId) {
+        Counters next = counters.get(mailboxId);
+        return next == null ? 0 : next.modSeq;
+    }
+
+    private void lease(byte type, long mailboxId, long lease) throws MailboxException {
+        try {
+            out.writeByte(type);
+            out.writeLong(mailboxId);
+            out.writeLong(lease);
+            records++;
+            sync();
+        } catch (IOException e) {
+            throw new MailboxException("Unable to record lease for mailbox " + mailboxId, e);
+        }
+    }
+
+    /**
+     * Retrieve the UID of an EVE mail in a mailbox, allocating and recording a new UID the first time
+     * the mail is seen in that mailbox.
+     *
+     * @param mailboxId mailbox ID.
+     * @param mailID EVE mail ID.
+     * @return the UID of the mail.
+     * @throws MailboxException if a new UID could not be recorded.
+     */
+    public synchronized long uidFor(long mailboxId, long mailID) throws MailboxException {
+        Long existing = counters(mailboxId).uidByMailID.get(mailID);
+        if (existing != null) return existing;
+        long uid = nextUid(mailboxId);
+        try {
+            out.writeByte(RECORD_ASSIGN);
+            out.writeLong(mailboxId);
+            out.writeLong(mailID);
+            out.writeLong(uid);
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            throw new MailboxException("Unable to record UID for mail " + mailID, e);
+        }
+        counters(mailboxId).uidByMailID.put(mailID, uid);
+        assignments++;
+        return uid;
+    }
+
+    /**
+     * Discard the UID of an EVE mail which is no longer in a mailbox.  The UID is never reused.
+     *
+     * @param mailboxId mailbox ID.
+     * @param mailID EVE mail ID.
+     */
+    public synchronized void forget(long mailboxId, long mailID) {
+        Counters next = counters.get(mailboxId);
+        if (next == null || next.uidByMailID.remove(mailID) == null) return;
+        assignments--;
+        try {
+            out.writeByte(RECORD_FORGET);
+            out.writeLong(mailboxId);
+            out.writeLong(mailID);
+            out.flush();
+            records++;
+            if (records - assignments - mailboxesById.size() - 2L * counters.size() > COMPACT_THRESHOLD) compact();
+        } catch (IOException e) {
+            // Worst case the mail keeps its UID should it return to this mailbox
+            log.warning("Unable to record removal of mail " + mailID + " from mailbox " + mailboxId + ": " + e);
+        }
+    }
+
+    /**
+     * Sync all recorded state to disk.
+     *
+     * @throws IOException if the log could not be synced.
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        logFile.getFD().sync();
+    }
+
+    /**
+     * Replay the log, then rewrite it with only the current state.
+     */
+    private synchronized void load() throws IOException {
+        File logPath = new File(dir, LOG_FILE);
+        if (logPath.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logPath)))) {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == RECORD_MAILBOX) {
+                        index(readMailbox(in));
+                    } else if (type == RECORD_UID_LEASE) {
+                        Counters next = counters(in.readLong());
+                        // Anything up to the lease may have been handed out
+                        next.uidLease = in.readLong();
+                        next.lastUid = next.uidLease;
+                    } else if (type == RECORD_MODSEQ_LEASE) {
+                        Counters next = counters(in.readLong());
+                        next.modSeqLease = in.readLong();
+                        next.modSeq = next.modSeqLease;
+                    } else if (type == RECORD_ASSIGN) {
+                        long mailboxId = in.readLong();
+                        long mailID = in.readLong();
+                        long uid = in.readLong();
+                        counters(mailboxId).uidByMailID.put(mailID, uid);
+                    } else if (type == RECORD_FORGET) {
+                        long mailboxId = in.readLong();
+                        counters(mailboxId).uidByMailID.remove(in.readLong());
+                    } else if (type == RECORD_DELETE) {
+                        unindex(in.readLong());
+                    } else {
+                        log.warning("Corrupt mailbox state record, discarding remainder of log");
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of log, a partial trailing record is discarded
+            }
+        }
+        compact();
+        log.info("Loaded state for " + mailboxesById.size() + " mailboxes with " + assignments + " assigned UIDs");
+    }
+
+    private void compact() throws IOException {
+        File logPath = new File(dir, LOG_FILE);
+        File compacted = new File(dir, LOG_FILE + ".tmp");
+        long written = 0;
+        long assigned = 0;
+        try {
+            try (FileOutputStream file = new FileOutputStream(compacted);
+                 DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(file))) {
+                for (MailboxRecord next : mailboxesById.values()) {
+                    writeMailbox(tmp, next);
+                    written++;
+                }
+                for (Map.Entry<Long, Counters> next : counters.entrySet()) {
+                    long mailboxId = next.getKey();
+                    Counters state = next.getValue();
+                    tmp.writeByte(RECORD_UID_LEASE);
+                    tmp.writeLong(mailboxId);
+                    tmp.writeLong(state.uidLease);
+                    tmp.writeByte(RECORD_MODSEQ_LEASE);
+                    tmp.writeLong(mailboxId);
+                    tmp.writeLong(state.modSeqLease);
+                    written += 2;
+                    for (Map.Entry<Long, Long> uid : state.uidByMailID.entrySet()) {
+                        tmp.writeByte(RECORD_ASSIGN);
+                        tmp.writeLong(mailboxId);
+                        tmp.writeLong(uid.getKey());
+                        tmp.writeLong(uid.getValue());
+                        assigned++;
+                        written++;
+                    }
+                }
+                tmp.flush();
+                file.getFD().sync();
+            }
+            DataOutputStream old = out;
+            out = null;
+            if (old != null) old.close();
+            Files.move(compacted.toPath(), logPath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = written;
+            assignments = assigned;
+        } catch (IOException e) {
+            if (!compacted.delete() && compacted.exists()) log.warning("Unable to remove " + compacted);
+            throw e;
+        } finally {
+            // Keep appending to whichever log is in place, the old one if compaction failed
+            if (out == null) {
+                logFile = new FileOutputStream(logPath, true);
+                out = new DataOutputStream(new BufferedOutputStream(logFile));
+            }
+        }
+    }
+
+    private static void writeMailbox(DataOutputStream target, MailboxRecord mailbox) throws IOException {
+        target.writeByte(RECORD_MAILBOX);
+        target.writeLong(mailbox.id);
+        target.writeInt(mailbox.characterID);
+        byte[] name = mailbox.name.getBytes(UTF_8);
+        target.writeInt(name.length);
+        target.write(name);
+        target.writeLong(mailbox.uidValidity);
+    }
+
+    private static MailboxRecord readMailbox(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        int characterID = in.readInt();
+        int length = in.readInt();
+        // A garbage length means a torn or corrupt record
+        if (length < 0 || length > MAX_STRING_LENGTH) throw new EOFException("Invalid string length: " + length);
+        byte[] name = new byte[length];
+        in.readFully(name);
+        long uidValidity = in.readLong();
+        return new MailboxRecord(id, characterID, new String(name, UTF_8), uidValidity);
+    }
+}
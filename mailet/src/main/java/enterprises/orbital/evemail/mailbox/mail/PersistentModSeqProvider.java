@@ -0,0 +1,35 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.store.mail.ModSeqProvider;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+/**
+ * ModSeq provider backed by {@link MailboxStateLog}, so HIGHESTMODSEQ never goes backwards across
+ * restarts.
+ */
+public class PersistentModSeqProvider implements ModSeqProvider {
+
+    @Override
+    public long nextModSeq(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return nextModSeq(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public long nextModSeq(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        return MailboxStateLog.getInstance().nextModSeq(((InMemoryId) mailboxId).getRawId());
+    }
+
+    @Override
+    public long highestModSeq(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return highestModSeq(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public long highestModSeq(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        return MailboxStateLog.getInstance().highestModSeq(((InMemoryId) mailboxId).getRawId());
+    }
+}
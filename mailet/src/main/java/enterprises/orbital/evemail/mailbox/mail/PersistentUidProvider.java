@@ -0,0 +1,56 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import com.google.common.base.Optional;
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+
+import java.io.IOException;
+
+/**
+ * UID provider backed by {@link MailboxStateLog}, so UIDs keep increasing across restarts and EVE mails
+ * keep the UID they were first given in each mailbox.
+ */
+public class PersistentUidProvider implements EveMailUidProvider {
+
+    @Override
+    public MessageUid nextUid(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        return nextUid(session, mailbox.getMailboxId());
+    }
+
+    @Override
+    public MessageUid nextUid(MailboxSession session, MailboxId mailboxId) throws MailboxException {
+        return MessageUid.of(MailboxStateLog.getInstance().nextUid(((InMemoryId) mailboxId).getRawId()));
+    }
+
+    @Override
+    public Optional<MessageUid> lastUid(MailboxSession session, Mailbox mailbox) throws MailboxException {
+        long last = MailboxStateLog.getInstance().lastUid(((InMemoryId) mailbox.getMailboxId()).getRawId());
+        if (last == 0) {
+            return Optional.absent();
+        }
+        return Optional.of(MessageUid.of(last));
+    }
+
+    @Override
+    public MessageUid uidFor(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException {
+        return MessageUid.of(MailboxStateLog.getInstance().uidFor(((InMemoryId) mailboxId).getRawId(), mailID));
+    }
+
+    @Override
+    public void forget(MailboxSession session, MailboxId mailboxId, long mailID) throws MailboxException {
+        MailboxStateLog.getInstance().forget(((InMemoryId) mailboxId).getRawId(), mailID);
+    }
+
+    @Override
+    public void sync() throws MailboxException {
+        try {
+            MailboxStateLog.getInstance().sync();
+        } catch (IOException e) {
+            throw new MailboxException("Unable to sync mailbox state", e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import com.google.common.collect.Iterators;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.model.MessageRange;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableMap;
+
+/**
+ * Range queries over UID-ordered message maps shared by the message mappers.
+ */
+final class UidRanges {
+    private UidRanges() {}
+
+    /**
+     * View of the entries of a UID-ordered map which fall within a message range.  The view is backed by
+     * the map and costs O(log n) to create.
+     *
+     * @param byUid messages ordered by UID.
+     * @param range the range to select.
+     * @return the entries within range, in ascending UID order.
+     */
+    static <V> NavigableMap<MessageUid, V> subMap(NavigableMap<MessageUid, V> byUid, MessageRange range) {
+        switch (range.getType()) {
+            case ALL:
+                return byUid;
+            case ONE:
+                return byUid.subMap(range.getUidFrom(), true, range.getUidFrom(), true);
+            case FROM:
+                return byUid.tailMap(range.getUidFrom(), true);
+            case RANGE:
+            default:
+                // subMap rejects an inverted range, which simply selects nothing
+                if (range.getUidFrom().compareTo(range.getUidTo()) > 0) return Collections.emptyNavigableMap();
+                return byUid.subMap(range.getUidFrom(), true, range.getUidTo(), true);
+        }
+    }
+
+    /**
+     * Lazy iterator over the values within a message range, in ascending UID order.
+     *
+     * @param byUid messages ordered by UID.
+     * @param range the range to select.
+     * @param max maximum number of values to return, or a non-positive value for no limit.
+     * @return iterator over values within range.
+     */
+    static <V> Iterator<V> iterator(NavigableMap<MessageUid, V> byUid, MessageRange range, int max) {
+        Iterator<V> values = subMap(byUid, range).values().iterator();
+        return max > 0 ? Iterators.limit(values, max) : values;
+    }
+}
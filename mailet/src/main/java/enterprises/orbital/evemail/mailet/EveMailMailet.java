@@ -3,14 +3,15 @@ package enterprises.orbital.evemail.mailet;
 import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.db.DBPropertyProvider;
-import enterprises.orbital.eve.esi.client.api.MailApi;
-import enterprises.orbital.eve.esi.client.api.SearchApi;
 import enterprises.orbital.eve.esi.client.invoker.ApiException;
 import enterprises.orbital.eve.esi.client.model.GetSearchOk;
 import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailMail;
 import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailRecipient;
 import enterprises.orbital.evemail.account.EveMailAccount;
 import enterprises.orbital.evemail.account.EveMailAccountProvider;
+import enterprises.orbital.evemail.account.EveMailTokenRefresher;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import enterprises.orbital.evemail.esi.EveNameCache;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.base.GenericMailet;
@@ -20,42 +21,53 @@ import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class EveMailMailet extends GenericMailet {
-  public static final String PROP_USER_AGENT = "enterprises.orbital.evemail.user_agent";
-  public static final String DEF_USER_AGENT = "EveMail/1.0.0 (https://evemail.orbital.enterprises; deadlybulb@orbital.enterprises; )";
-  public static final String PROP_TOKEN_WINDOW = "enterprises.orbital.evemail.tokenWindow";
-  public static final long DEF_TOKEN_WINDOW = 60000L;
-
   enum MailTargetType {
-    CHARACTER("character"),
-    CORPORATION("corporation"),
-    ALLIANCE("alliance");
+    CHARACTER("character", EveNameCache.EntityType.CHARACTER),
+    CORPORATION("corporation", EveNameCache.EntityType.CORPORATION),
+    ALLIANCE("alliance", EveNameCache.EntityType.ALLIANCE);
 
     String value;
+    EveNameCache.EntityType entityType;
 
-    MailTargetType(String value) {
+    MailTargetType(String value, EveNameCache.EntityType entityType) {
       this.value = value;
+      this.entityType = entityType;
     }
 
     public String getValue() {
       return value;
     }
+
+    public EveNameCache.EntityType getEntityType() {
+      return entityType;
+    }
+
+    public List<Integer> getTargets(GetSearchOk result) {
+      switch (this) {
+        case CORPORATION:
+          return result.getCorporation();
+        case ALLIANCE:
+          return result.getAlliance();
+        case CHARACTER:
+        default:
+          return result.getCharacter();
+      }
+    }
   }
 
-  protected String userAgent;
-  protected long tokenWindow;
+  protected EveMailOutbox outbox;
 
   @Override
   public void init() throws MessagingException {
     try {
       OrbitalProperties.addPropertyFile("EveMailMailet.properties");
       PersistentProperty.setProvider(new DBPropertyProvider(OrbitalProperties.getGlobalProperty(EveMailAccountProvider.EVEMAIL_PU_PROP)));
-      userAgent = OrbitalProperties.getGlobalProperty(PROP_USER_AGENT, DEF_USER_AGENT);
-      tokenWindow = OrbitalProperties.getLongGlobalProperty(PROP_TOKEN_WINDOW, DEF_TOKEN_WINDOW);
+      EveMailTokenRefresher.start();
+      outbox = EveMailOutbox.start(getMailetContext());
     } catch (IOException e) {
       throw new MessagingException("Initialization error", e);
     }
@@ -80,22 +92,61 @@ public class EveMailMailet extends GenericMailet {
     }
   }
 
-  protected int mapToID(String localPart, MailTargetType tt) {
-    Object addr = getNameOrID(localPart);
-    if (addr instanceof Integer)
-      // Already converted to character ID
-      return (Integer) addr;
-    // Otherwise, perform a search
-    SearchApi api = new SearchApi();
-    try {
-      GetSearchOk result = api.getSearch(Arrays.asList(tt.getValue()), (String) addr, null, null, true, userAgent, null);
-      List<Integer> targets = result.getCharacter();
-      if (!targets.isEmpty())
-        return targets.get(0);
-    } catch (ApiException e) {
-      log("Error resolving mail target: " + localPart, e);
-    }
-    return -1;
+  // A recipient parsed into its target type and either an ID (Integer) or a name (String) to resolve
+  protected static class MailTarget {
+    final MailAddress address;
+    final MailTargetType type;
+    final Object nameOrID;
+
+    MailTarget(MailAddress address, MailTargetType type, Object nameOrID) {
+      this.address = address;
+      this.type = type;
+      this.nameOrID = nameOrID;
+    }
+  }
+
+  /**
+   * Resolve the names of all named targets.  The name cache is consulted first, then a single strict
+   * search is issued for each distinct remaining (type, name) pair.  All searches are issued before any
+   * are awaited so they run concurrently.  Names which can't be resolved are omitted from the result.
+   *
+   * @param targets parsed recipients.
+   * @return map from target type to resolved name to ID.
+   */
+  protected Map<MailTargetType, Map<String, Integer>> resolveNames(List<MailTarget> targets) {
+    EveNameCache cache = EveNameCache.getInstance();
+    EveAsyncClient client = EveAsyncClient.getInstance();
+    Map<MailTargetType, Map<String, Integer>> result = new EnumMap<>(MailTargetType.class);
+    Map<MailTargetType, Map<String, CompletableFuture<GetSearchOk>>> pending = new EnumMap<>(MailTargetType.class);
+    for (MailTargetType tt : MailTargetType.values()) {
+      result.put(tt, new HashMap<>());
+      pending.put(tt, new HashMap<>());
+    }
+    for (MailTarget next : targets) {
+      if (!(next.nameOrID instanceof String)) continue;
+      String name = (String) next.nameOrID;
+      if (result.get(next.type).containsKey(name) || pending.get(next.type).containsKey(name)) continue;
+      Long cached = cache.getID(next.type.getEntityType(), name);
+      if (cached != null)
+        result.get(next.type).put(name, cached.intValue());
+      else
+        pending.get(next.type).put(name, client.search(Collections.singletonList(next.type.getValue()), name, true));
+    }
+    for (Map.Entry<MailTargetType, Map<String, CompletableFuture<GetSearchOk>>> byType : pending.entrySet()) {
+      MailTargetType tt = byType.getKey();
+      for (Map.Entry<String, CompletableFuture<GetSearchOk>> next : byType.getValue().entrySet()) {
+        try {
+          List<Integer> ids = tt.getTargets(EveAsyncClient.await(next.getValue()));
+          if (ids != null && !ids.isEmpty()) {
+            result.get(tt).put(next.getKey(), ids.get(0));
+            cache.putID(tt.getEntityType(), next.getKey(), ids.get(0));
+          }
+        } catch (ApiException | IOException e) {
+          log("Error resolving mail target: " + next.getKey(), e);
+        }
+      }
+    }
+    return result;
   }
 
   protected void addTarget(int id, PostCharactersCharacterIdMailRecipient.RecipientTypeEnum tt,
@@ -135,50 +186,69 @@ public class EveMailMailet extends GenericMailet {
       getMailetContext().bounce(mail, "Internal error resolving sender account, please try again.");
       return;
     }
-    // Resolve each recipient to an appropriate ID and type
-    Integer allianceTarget = null;
-    Integer corpTarget = null;
-    List<Integer> charTargets = new ArrayList<>();
+    // Parse each recipient to a target type and either an ID or a name
+    List<MailTarget> targets = new ArrayList<>();
+    int corpCount = 0;
+    int allianceCount = 0;
     for (MailAddress next : mail.getRecipients()) {
-      int nextID = -1;
+      MailTargetType tt;
       switch (next.getDomain()) {
         case "char.evemail.orbital.enterprises":
-          nextID = mapToID(next.getLocalPart(), MailTargetType.CHARACTER);
-          if (nextID != -1) charTargets.add(nextID);
+          tt = MailTargetType.CHARACTER;
           break;
 
         case "corp.evemail.orbital.enterprises":
           // TODO: verify corp target is senders corp
-          if (corpTarget != null) {
+          if (++corpCount > 1) {
             log("Only one corporation recipient is allowed");
             getMailetContext().bounce(mail, "Multiple corporation recipients specified, only one allowed.");
             return;
           }
-          nextID = mapToID(next.getLocalPart(), MailTargetType.CORPORATION);
-          if (nextID != -1) corpTarget = nextID;
+          tt = MailTargetType.CORPORATION;
           break;
 
         case "alliance.evemail.orbital.enterprises":
           // TODO: verify alliance target is sender's corp's alliance
-          if (allianceTarget != null) {
+          if (++allianceCount > 1) {
             log("Only one alliance recipient is allowed");
             getMailetContext().bounce(mail, "Multiple alliance recipients specified, only one allowed.");
             return;
           }
-          nextID = mapToID(next.getLocalPart(), MailTargetType.ALLIANCE);
-          if (nextID != -1) allianceTarget = nextID;
+          tt = MailTargetType.ALLIANCE;
           break;
 
         default:
+          log("Failed to map recipient, ignoring: " + next.asString());
+          continue;
       }
-      if (nextID == -1) {
-        log("Failed to map recipient, ignoring: " + next.asString());
+      targets.add(new MailTarget(next, tt, getNameOrID(next.getLocalPart())));
+    }
+    // Resolve all named recipients together, then map each recipient to an appropriate ID
+    Map<MailTargetType, Map<String, Integer>> resolved = resolveNames(targets);
+    Integer allianceTarget = null;
+    Integer corpTarget = null;
+    List<Integer> charTargets = new ArrayList<>();
+    for (MailTarget next : targets) {
+      Integer nextID = next.nameOrID instanceof Integer ? (Integer) next.nameOrID : resolved.get(next.type).get(next.nameOrID);
+      if (nextID == null) {
+        log("Failed to map recipient, ignoring: " + next.address.asString());
+        continue;
+      }
+      switch (next.type) {
+        case CHARACTER:
+          charTargets.add(nextID);
+          break;
+        case CORPORATION:
+          corpTarget = nextID;
+          break;
+        case ALLIANCE:
+          allianceTarget = nextID;
+          break;
       }
     }
     // Create and send message
     try {
       MimeMessage mm = mail.getMessage();
-      MailApi apiInstance = new MailApi();
       // Set subject
       PostCharactersCharacterIdMailMail mailBody = new PostCharactersCharacterIdMailMail();
       mailBody.setSubject(mm.getSubject());
@@ -188,7 +258,7 @@ public class EveMailMailet extends GenericMailet {
       if (corpTarget != null)
         addTarget(corpTarget, PostCharactersCharacterIdMailRecipient.RecipientTypeEnum.CORPORATION, mailBody);
       if (allianceTarget != null)
-        addTarget(allianceTarget, PostCharactersCharacterIdMailRecipient.RecipientTypeEnum.CORPORATION, mailBody);
+        addTarget(allianceTarget, PostCharactersCharacterIdMailRecipient.RecipientTypeEnum.ALLIANCE, mailBody);
       // Assemble body
       StringBuilder body = new StringBuilder();
       Object content = mm.getContent();
@@ -208,14 +278,13 @@ public class EveMailMailet extends GenericMailet {
         }
       }
       mailBody.setBody(body.toString());
-      // Send message
-      String token = EveMailAccount.refresh(senderCharacterID, tokenWindow);
-      apiInstance.postCharactersCharacterIdMail(senderCharacterID, mailBody, null, token, userAgent, null);
+      // Queue message for delivery, the outbox handles retries and bounces from here
+      outbox.enqueue(senderCharacterID, mail.getSender(), mailBody);
       // Mark message as consumed
       mail.setState(Mail.GHOST);
-    } catch (ApiException | IOException e) {
-      log("API failure sending message from: " + senderCharacterID, e);
-      getMailetContext().bounce(mail, "ESI error sending message, please try again");
+    } catch (IOException e) {
+      log("Failed to queue message from: " + senderCharacterID, e);
+      getMailetContext().bounce(mail, "Internal error queueing message, please try again");
     }
   }
 
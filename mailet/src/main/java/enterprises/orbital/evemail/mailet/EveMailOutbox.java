@@ -0,0 +1,363 @@
+package enterprises.orbital.evemail.mailet;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailMail;
+import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailRecipient;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.MailetContext;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of outbound EVE mails.  The mailet enqueues fully resolved messages and returns
+ * immediately; a small worker pool posts them to ESI, retrying failures with exponential backoff and
+ * bouncing to the sender once retries are exhausted or ESI rejects the message outright.
+ * <p>
+ * Queue state is kept in an append-only journal.  Enqueues are synced to disk before they are
+ * acknowledged, completions and retry counts are appended as they happen.  On startup the journal is
+ * replayed, compacted to the messages still pending, and those messages are resubmitted.  While running,
+ * the journal is compacted once enough records have accumulated since the last compaction.
+ * <p>
+ * Completion and retry records are flushed but not synced, so delivery is at least once: a crash after
+ * a message was posted but before its completion record reached disk resends the message on restart,
+ * and a lost retry record restarts that message's backoff from an earlier attempt.
+ */
+public class EveMailOutbox {
+  private static final Logger log = Logger.getLogger(EveMailOutbox.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public static final String PROP_OUTBOX_DIR = "enterprises.orbital.evemail.outboxDir";
+  public static final String DEF_OUTBOX_DIR = "var/evemail/outbox";
+  public static final String PROP_OUTBOX_THREADS = "enterprises.orbital.evemail.outboxThreads";
+  public static final long DEF_OUTBOX_THREADS = 2L;
+  public static final String PROP_OUTBOX_MAX_ATTEMPTS = "enterprises.orbital.evemail.outboxMaxAttempts";
+  public static final long DEF_OUTBOX_MAX_ATTEMPTS = 10L;
+  // Delay before the first retry, doubled on each further failure up to the max delay
+  public static final String PROP_OUTBOX_RETRY_DELAY = "enterprises.orbital.evemail.outboxRetryDelay";
+  public static final long DEF_OUTBOX_RETRY_DELAY = 30000L;
+  public static final String PROP_OUTBOX_MAX_RETRY_DELAY = "enterprises.orbital.evemail.outboxMaxRetryDelay";
+  public static final long DEF_OUTBOX_MAX_RETRY_DELAY = 60L * 60L * 1000L;
+  // Records written since the last compaction before the journal is compacted again
+  public static final String PROP_OUTBOX_COMPACT_RECORDS = "enterprises.orbital.evemail.outboxCompactRecords";
+  public static final long DEF_OUTBOX_COMPACT_RECORDS = 1000L;
+
+  private static final String JOURNAL_FILE = "outbox.journal";
+  private static final byte RECORD_ENQUEUE = 'E';
+  private static final byte RECORD_RETRY = 'R';
+  private static final byte RECORD_DONE = 'D';
+  private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+  private static volatile EveMailOutbox instance;
+
+  /**
+   * A queued message.
+   */
+  protected static class Entry {
+    final long seq;
+    final int senderCharacterID;
+    final String sender;
+    final PostCharactersCharacterIdMailMail mail;
+    int attempts;
+
+    Entry(long seq, int senderCharacterID, String sender, PostCharactersCharacterIdMailMail mail, int attempts) {
+      this.seq = seq;
+      this.senderCharacterID = senderCharacterID;
+      this.sender = sender;
+      this.mail = mail;
+      this.attempts = attempts;
+    }
+  }
+
+  private final File dir;
+  private final MailetContext context;
+  private final ScheduledExecutorService workers;
+  private final int maxAttempts;
+  private final long retryDelay;
+  private final long maxRetryDelay;
+  private final long compactRecords;
+  private final Map<Long, Entry> pending = new ConcurrentHashMap<>();
+  private FileOutputStream journalFile;
+  private DataOutputStream journal;
+  private long nextSeq;
+  private long journalRecords;
+
+  /**
+   * Start the shared outbox if it is not already running.
+   *
+   * @param context mailet context used to deliver bounces.
+   * @return the shared outbox.
+   * @throws IOException if the journal could not be opened.
+   */
+  public static EveMailOutbox start(MailetContext context) throws IOException {
+    if (instance == null) {
+      synchronized (EveMailOutbox.class) {
+        if (instance == null) {
+          File dir = new File(OrbitalProperties.getGlobalProperty(PROP_OUTBOX_DIR, DEF_OUTBOX_DIR));
+          instance = new EveMailOutbox(dir, context);
+        }
+      }
+    }
+    return instance;
+  }
+
+  // Package access so tests can open an outbox in a scratch directory
+  EveMailOutbox(File dir, MailetContext context) throws IOException {
+    this.dir = dir;
+    this.context = context;
+    maxAttempts = (int) OrbitalProperties.getLongGlobalProperty(PROP_OUTBOX_MAX_ATTEMPTS, DEF_OUTBOX_MAX_ATTEMPTS);
+    retryDelay = OrbitalProperties.getLongGlobalProperty(PROP_OUTBOX_RETRY_DELAY, DEF_OUTBOX_RETRY_DELAY);
+    maxRetryDelay = OrbitalProperties.getLongGlobalProperty(PROP_OUTBOX_MAX_RETRY_DELAY, DEF_OUTBOX_MAX_RETRY_DELAY);
+    compactRecords = OrbitalProperties.getLongGlobalProperty(PROP_OUTBOX_COMPACT_RECORDS, DEF_OUTBOX_COMPACT_RECORDS);
+    int threads = (int) OrbitalProperties.getLongGlobalProperty(PROP_OUTBOX_THREADS, DEF_OUTBOX_THREADS);
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create outbox directory " + dir);
+    load();
+    final AtomicInteger count = new AtomicInteger(0);
+    workers = Executors.newScheduledThreadPool(Math.max(1, threads), r -> {
+      Thread t = new Thread(r, "evemail-outbox-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    for (Entry next : pending.values()) schedule(next, 0);
+    if (!pending.isEmpty()) log.info("Resubmitting " + pending.size() + " queued outbound messages");
+  }
+
+  /**
+   * Queue a message for delivery.  The message is durable once this method returns.
+   *
+   * @param senderCharacterID character sending the message.
+   * @param sender envelope sender to notify if the message can't be delivered, may be null.
+   * @param mail the resolved ESI message.
+   * @throws IOException if the message could not be written to the journal.
+   */
+  public void enqueue(int senderCharacterID, MailAddress sender, PostCharactersCharacterIdMailMail mail)
+      throws IOException {
+    Entry entry;
+    synchronized (this) {
+      if (journal == null) throw new IOException("Outbox journal is not open");
+      entry = new Entry(nextSeq++, senderCharacterID, sender == null ? "" : sender.asString(), mail, 0);
+      writeEnqueue(journal, entry);
+      journal.flush();
+      journalFile.getFD().sync();
+      journalRecords++;
+      pending.put(entry.seq, entry);
+    }
+    schedule(entry, 0);
+  }
+
+  public int size() {
+    return pending.size();
+  }
+
+  private void schedule(Entry entry, long delay) {
+    workers.schedule(() -> deliver(entry), delay, TimeUnit.MILLISECONDS);
+  }
+
+  protected void deliver(Entry entry) {
+    try {
+      EveAsyncClient.await(EveAsyncClient.getInstance().sendMail(entry.senderCharacterID, entry.mail));
+      complete(entry);
+      return;
+    } catch (ApiException e) {
+      // Client errors other than rate limiting won't succeed on retry
+      int code = e.getCode();
+      if (code >= 400 && code < 500 && code != 420 && code != 429) {
+        log.log(Level.WARNING, "ESI rejected message " + entry.seq + " from: " + entry.senderCharacterID, e);
+        bounce(entry, "ESI rejected message: " + e.getMessage());
+        complete(entry);
+        return;
+      }
+      log.log(Level.WARNING, "API failure sending message " + entry.seq + " from: " + entry.senderCharacterID, e);
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.WARNING, "Failure sending message " + entry.seq + " from: " + entry.senderCharacterID, e);
+    }
+    int attempts = ++entry.attempts;
+    if (attempts >= maxAttempts) {
+      bounce(entry, "ESI error sending message, gave up after " + attempts + " attempts");
+      complete(entry);
+      return;
+    }
+    synchronized (this) {
+      try {
+        journal.writeByte(RECORD_RETRY);
+        journal.writeLong(entry.seq);
+        journal.writeInt(attempts);
+        journal.flush();
+        journalRecords++;
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Failed to record retry for message " + entry.seq, e);
+      }
+    }
+    long delay = Math.min(maxRetryDelay, retryDelay << Math.min(attempts - 1, 30));
+    schedule(entry, delay);
+  }
+
+  private synchronized void complete(Entry entry) {
+    pending.remove(entry.seq);
+    try {
+      journal.writeByte(RECORD_DONE);
+      journal.writeLong(entry.seq);
+      journal.flush();
+      journalRecords++;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to record completion of message " + entry.seq, e);
+    }
+    if (journalRecords < compactRecords) return;
+    try {
+      compact();
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "Failed to reopen outbox journal", e);
+    }
+  }
+
+  private void bounce(Entry entry, String reason) {
+    if (entry.sender.isEmpty()) {
+      log.warning("Dropping undeliverable message " + entry.seq + " with no sender: " + reason);
+      return;
+    }
+    try {
+      MailAddress sender = new MailAddress(entry.sender);
+      MimeMessage notice = new MimeMessage(Session.getDefaultInstance(new Properties()));
+      notice.setFrom(context.getPostmaster().toInternetAddress());
+      notice.setRecipient(javax.mail.Message.RecipientType.TO, sender.toInternetAddress());
+      notice.setSubject("Undeliverable: " + entry.mail.getSubject());
+      notice.setText("Your message could not be delivered.\r\n\r\n" + reason + "\r\n");
+      notice.saveChanges();
+      context.sendMail(context.getPostmaster(), Collections.singletonList(sender), notice);
+    } catch (MessagingException e) {
+      log.log(Level.WARNING, "Failed to bounce message " + entry.seq + " to: " + entry.sender, e);
+    }
+  }
+
+  /**
+   * Replay the journal into the pending set, then rewrite it with only the pending entries.
+   */
+  private synchronized void load() throws IOException {
+    File journalPath = new File(dir, JOURNAL_FILE);
+    if (journalPath.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalPath)))) {
+        while (true) {
+          byte type = in.readByte();
+          journalRecords++;
+          if (type == RECORD_ENQUEUE) {
+            Entry next = readEnqueue(in);
+            pending.put(next.seq, next);
+            nextSeq = Math.max(nextSeq, next.seq + 1);
+          } else if (type == RECORD_RETRY) {
+            long seq = in.readLong();
+            int attempts = in.readInt();
+            Entry next = pending.get(seq);
+            if (next != null) next.attempts = attempts;
+          } else if (type == RECORD_DONE) {
+            pending.remove(in.readLong());
+          } else {
+            log.warning("Corrupt outbox journal record, discarding remainder of journal");
+            break;
+          }
+        }
+      } catch (EOFException e) {
+        // End of journal, a partial trailing record is discarded
+      }
+    }
+    compact();
+  }
+
+  /**
+   * Rewrite the journal with only the pending entries.  If the journal can't be replaced, the old journal
+   * is reopened and appended to as before.
+   *
+   * @throws IOException if neither the compacted nor the old journal could be opened.
+   */
+  private void compact() throws IOException {
+    File journalPath = new File(dir, JOURNAL_FILE);
+    File compacted = new File(dir, JOURNAL_FILE + ".tmp");
+    long written = 0;
+    try {
+      try (FileOutputStream file = new FileOutputStream(compacted);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+        for (Entry next : pending.values()) {
+          writeEnqueue(out, next);
+          written++;
+          if (next.attempts > 0) {
+            out.writeByte(RECORD_RETRY);
+            out.writeLong(next.seq);
+            out.writeInt(next.attempts);
+            written++;
+          }
+        }
+        out.flush();
+        file.getFD().sync();
+      }
+      if (journal != null) journal.close();
+      journal = null;
+      Files.move(compacted.toPath(), journalPath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      journalRecords = written;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to compact outbox journal, continuing with the old journal", e);
+      if (!compacted.delete() && compacted.exists()) log.warning("Unable to remove " + compacted);
+      // Still appending to the old journal if we failed before closing it
+      if (journal != null) return;
+    }
+    journalFile = new FileOutputStream(journalPath, true);
+    journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+  }
+
+  private static void writeEnqueue(DataOutputStream out, Entry entry) throws IOException {
+    out.writeByte(RECORD_ENQUEUE);
+    out.writeLong(entry.seq);
+    out.writeInt(entry.senderCharacterID);
+    writeString(out, entry.sender);
+    writeString(out, entry.mail.getSubject());
+    writeString(out, entry.mail.getBody());
+    List<PostCharactersCharacterIdMailRecipient> recipients = entry.mail.getRecipients();
+    out.writeInt(recipients.size());
+    for (PostCharactersCharacterIdMailRecipient next : recipients) {
+      out.writeInt(next.getRecipientId());
+      writeString(out, next.getRecipientType().name());
+    }
+  }
+
+  private static Entry readEnqueue(DataInputStream in) throws IOException {
+    long seq = in.readLong();
+    int senderCharacterID = in.readInt();
+    String sender = readString(in);
+    PostCharactersCharacterIdMailMail mail = new PostCharactersCharacterIdMailMail();
+    mail.setSubject(readString(in));
+    mail.setBody(readString(in));
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      PostCharactersCharacterIdMailRecipient tgt = new PostCharactersCharacterIdMailRecipient();
+      tgt.setRecipientId(in.readInt());
+      tgt.setRecipientType(PostCharactersCharacterIdMailRecipient.RecipientTypeEnum.valueOf(readString(in)));
+      mail.addRecipientsItem(tgt);
+    }
+    return new Entry(seq, senderCharacterID, sender, mail, 0);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] data = (value == null ? "" : value).getBytes(UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    // A garbage length means a torn or corrupt record
+    if (length < 0 || length > MAX_STRING_LENGTH) throw new EOFException("Invalid string length: " + length);
+    byte[] data = new byte[length];
+    in.readFully(data);
+    return new String(data, UTF_8);
+  }
+}
@@ -0,0 +1,105 @@
+package enterprises.orbital.evemail.esi;
+
+import enterprises.orbital.eve.esi.client.invoker.ApiClient;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.invoker.ApiResponse;
+import enterprises.orbital.eve.esi.client.invoker.Configuration;
+import enterprises.orbital.evemail.account.EsiGovernor;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class EsiResponseCacheTest {
+
+  private static Map<String, List<String>> headers(String etag, long expires) {
+    Map<String, List<String>> headers = new HashMap<>();
+    if (etag != null) headers.put("ETag", Collections.singletonList(etag));
+    headers.put("Expires", Collections.singletonList(
+        DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(expires).atZone(ZoneOffset.UTC))));
+    return headers;
+  }
+
+  @Test
+  public void testFreshResponseIsServedFromCache() throws Exception {
+    EsiResponseCache cache = new EsiResponseCache(10);
+    AtomicInteger calls = new AtomicInteger();
+    List<String> payload = Collections.singletonList("fresh");
+    String key = EsiResponseCache.key("labels", 1);
+    for (int i = 0; i < 3; i++) {
+      assertSame(payload, cache.get(key, EsiGovernor.Priority.INTERACTIVE, client -> {
+        calls.incrementAndGet();
+        return new ApiResponse<>(200, headers("\"a\"", System.currentTimeMillis() + 60000L), payload);
+      }));
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testNotModifiedServesCachedPayload() throws Exception {
+    EsiResponseCache cache = new EsiResponseCache(10);
+    List<String> payload = Collections.singletonList("original");
+    String key = EsiResponseCache.key("headers", 1, 100);
+    // Already expired, so the next request revalidates
+    cache.get(key, EsiGovernor.Priority.INTERACTIVE,
+              client -> new ApiResponse<>(200, headers("\"a\"", System.currentTimeMillis() - 1000L), payload));
+
+    AtomicInteger calls = new AtomicInteger();
+    EsiResponseCache.ConditionalCall<List<String>> notModified = client -> {
+      calls.incrementAndGet();
+      throw new ApiException(304, headers(null, System.currentTimeMillis() + 60000L), "");
+    };
+    assertSame(payload, cache.get(key, EsiGovernor.Priority.INTERACTIVE, notModified));
+    // The 304 renewed the expiry
+    assertSame(payload, cache.get(key, EsiGovernor.Priority.INTERACTIVE, notModified));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testConditionalClientUsesDefaultConfiguration() throws Exception {
+    EsiResponseCache cache = new EsiResponseCache(10);
+    String key = EsiResponseCache.key("labels", 1);
+    cache.get(key, EsiGovernor.Priority.INTERACTIVE,
+              client -> new ApiResponse<>(200, headers("\"a\"", System.currentTimeMillis() - 1000L), "labels"));
+
+    ApiClient defaults = Configuration.getDefaultApiClient();
+    cache.get(key, EsiGovernor.Priority.INTERACTIVE, client -> {
+      assertNotSame(defaults, client);
+      assertEquals(defaults.getBasePath(), client.getBasePath());
+      assertSame(defaults.getHttpClient(), client.getHttpClient());
+      return new ApiResponse<>(200, headers("\"b\"", System.currentTimeMillis() + 60000L), "labels");
+    });
+  }
+
+  @Test
+  public void testNotModifiedWithoutCachedEntryFails() {
+    EsiResponseCache cache = new EsiResponseCache(10);
+    try {
+      cache.get(EsiResponseCache.key("headers", 1), EsiGovernor.Priority.INTERACTIVE, client -> {
+        throw new ApiException(304, headers(null, System.currentTimeMillis()), "");
+      });
+      fail("Expected ApiException");
+    } catch (ApiException e) {
+      assertEquals(304, e.getCode());
+    }
+  }
+
+  @Test
+  public void testInvalidateCharacter() throws Exception {
+    EsiResponseCache cache = new EsiResponseCache(10);
+    for (int characterID : new int[]{1, 2}) {
+      cache.get(EsiResponseCache.key("labels", characterID), EsiGovernor.Priority.INTERACTIVE,
+                client -> new ApiResponse<>(200, headers("\"a\"", System.currentTimeMillis() + 60000L), "labels"));
+    }
+    cache.invalidate(1);
+    assertEquals(1, cache.size());
+  }
+}
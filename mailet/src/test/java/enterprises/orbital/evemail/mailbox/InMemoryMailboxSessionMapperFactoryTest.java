@@ -0,0 +1,122 @@
+package enterprises.orbital.evemail.mailbox;
+
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMail200Ok;
+import enterprises.orbital.eve.esi.client.model.GetCharactersCharacterIdMailLists200Ok;
+import enterprises.orbital.eve.esi.client.model.GetCharactersNames200Ok;
+import enterprises.orbital.evemail.account.EsiGovernor.Priority;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import enterprises.orbital.evemail.mailbox.mail.EveHeaderStore;
+import enterprises.orbital.evemail.mailbox.mail.EveMailCachedMessageMapper;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.SimpleMailboxSession;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class InMemoryMailboxSessionMapperFactoryTest {
+    private static final int CHARACTER_ID = 90000002;
+    private static final int INBOX_LABEL = 1;
+
+    /**
+     * Serves a single inbox mail.
+     */
+    private static class FakeClient extends EveAsyncClient {
+        FakeClient() {
+            super(null, null, "test", 0L);
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersCharacterIdMail200Ok>> getMailHeaders(Priority priority, int characterID,
+                                                                                         List<Integer> labels,
+                                                                                         Integer lastMailID) {
+            List<GetCharactersCharacterIdMail200Ok> page = new ArrayList<>();
+            if (lastMailID == null) {
+                GetCharactersCharacterIdMail200Ok header = new GetCharactersCharacterIdMail200Ok();
+                header.setMailId(100);
+                header.setFrom(CHARACTER_ID);
+                header.setSubject("Mail");
+                header.setTimestamp(new DateTime(1500000000000L));
+                header.setIsRead(false);
+                header.setLabels(Collections.singletonList(INBOX_LABEL));
+                header.setRecipients(new ArrayList<>());
+                page.add(header);
+            }
+            return CompletableFuture.completedFuture(page);
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersNames200Ok>> getCharacterNames(List<Long> ids) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersCharacterIdMailLists200Ok>> getMailingLists(Priority priority, int characterID) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+    }
+
+    private InMemoryMailboxSessionMapperFactory factory;
+    private MailboxSession session;
+
+    @Before
+    public void setUp() {
+        EveAsyncClient.setInstance(new FakeClient());
+        factory = new InMemoryMailboxSessionMapperFactory();
+        session = new SimpleMailboxSession(1L, CHARACTER_ID + "@evemail.orbital.enterprises", "",
+                                           LoggerFactory.getLogger(getClass()), Collections.<Locale>emptyList(),
+                                           '.', MailboxSession.SessionType.User);
+    }
+
+    @After
+    public void tearDown() {
+        EveAsyncClient.setInstance(null);
+        EveHeaderStore.evict(CHARACTER_ID);
+    }
+
+    @Test
+    public void testActiveUserIsKept() throws Exception {
+        MessageMapper mapper = factory.createMessageMapper(session);
+
+        factory.releaseIdle(Long.MIN_VALUE);
+        assertSame(mapper, factory.createMessageMapper(session));
+    }
+
+    @Test
+    public void testIdleUserIsReleased() throws Exception {
+        MessageMapper mapper = factory.createMessageMapper(session);
+
+        factory.releaseIdle(Long.MAX_VALUE);
+        assertNotSame(mapper, factory.createMessageMapper(session));
+    }
+
+    @Test
+    public void testSessionKeepsMapperAcrossRelease() throws Exception {
+        EveMailCachedMessageMapper mapper = (EveMailCachedMessageMapper) factory.createMessageMapper(session);
+        SimpleMailbox inbox = new SimpleMailbox(new MailboxPath(null, session.getUser().getUserName(), "INBOX"), 1L);
+        inbox.setMailboxId(InMemoryId.of(1L));
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        assertEquals(1L, mapper.countMessagesInMailbox(inbox));
+        EveHeaderStore store = EveHeaderStore.forCharacter(CHARACTER_ID);
+
+        // The released mapper still serves its mailboxes, and its header store stays shared
+        factory.releaseIdle(Long.MAX_VALUE);
+        assertEquals(1L, mapper.countMessagesInMailbox(inbox));
+        assertEquals(1L, mapper.countUnseenMessagesInMailbox(inbox));
+        assertSame(store, EveHeaderStore.forCharacter(CHARACTER_ID));
+    }
+}
@@ -0,0 +1,58 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EveBodyStoreTest {
+  private static final int CHARACTER_ID = 90000001;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String body(long mailID) {
+    StringBuilder body = new StringBuilder("Mail " + mailID + " ");
+    while (body.length() < 100) body.append('x');
+    return body.toString();
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    File dir = folder.getRoot();
+    EveBodyStore store = new EveBodyStore(dir, 1024L * 1024L, 1024L);
+    for (long mailID = 1; mailID <= 20; mailID++) store.put(CHARACTER_ID, mailID, body(mailID));
+    assertEquals(body(5L), store.get(CHARACTER_ID, 5L));
+
+    // Bodies in both sealed and the previously active segment survive
+    EveBodyStore reopened = new EveBodyStore(dir, 1024L * 1024L, 1024L);
+    assertEquals(20, reopened.size());
+    for (long mailID = 1; mailID <= 20; mailID++) assertEquals(body(mailID), reopened.get(CHARACTER_ID, mailID));
+    assertNull(reopened.get(CHARACTER_ID + 1, 5L));
+  }
+
+  @Test
+  public void testEvictsOldestSegments() throws Exception {
+    EveBodyStore store = new EveBodyStore(folder.getRoot(), 500L, 200L);
+    for (long mailID = 1; mailID <= 20; mailID++) store.put(CHARACTER_ID, mailID, body(mailID));
+
+    assertNull(store.get(CHARACTER_ID, 1L));
+    assertEquals(body(20L), store.get(CHARACTER_ID, 20L));
+    // Two bodies per segment and at most the active segment plus enough sealed to stay under the cap
+    assertTrue(store.size() <= 6);
+  }
+
+  @Test
+  public void testPutIgnoresStoredBody() throws Exception {
+    EveBodyStore store = new EveBodyStore(folder.getRoot(), 1024L * 1024L, 1024L);
+    store.put(CHARACTER_ID, 1L, "first");
+    store.put(CHARACTER_ID, 1L, "second");
+    assertEquals("first", store.get(CHARACTER_ID, 1L));
+    assertEquals(1, store.size());
+  }
+}
@@ -0,0 +1,316 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import com.google.common.base.Optional;
+import enterprises.orbital.eve.esi.client.invoker.ApiException;
+import enterprises.orbital.eve.esi.client.model.*;
+import enterprises.orbital.evemail.account.EsiGovernor.Priority;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import enterprises.orbital.evemail.mailbox.InMemoryMailboxManager;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.MessageManager;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.model.MailboxId;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.FlagsUpdateCalculator;
+import org.apache.james.mailbox.store.SimpleMailboxSession;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Flags;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EveMailCachedMessageMapperTest {
+    private static final int CHARACTER_ID = 90000001;
+    private static final int INBOX_LABEL = 1;
+    private static final int CUSTOM_LABEL = 256;
+
+    /**
+     * Serves mail headers from memory and counts header calls.
+     */
+    private static class FakeClient extends EveAsyncClient {
+        final AtomicInteger headerCalls = new AtomicInteger();
+        volatile boolean failing;
+        final Map<Integer, List<GetCharactersCharacterIdMail200Ok>> byLabel = new HashMap<>();
+        final Map<Integer, GetCharactersCharacterIdMail200Ok> byMailID = new HashMap<>();
+
+        FakeClient() {
+            super(null, null, "test", 0L);
+        }
+
+        void addMail(int mailID, boolean read, Integer... labelIDs) {
+            GetCharactersCharacterIdMail200Ok header = new GetCharactersCharacterIdMail200Ok();
+            header.setMailId(mailID);
+            header.setFrom(CHARACTER_ID);
+            header.setSubject("Mail " + mailID);
+            header.setTimestamp(new DateTime(1500000000000L + mailID));
+            header.setIsRead(read);
+            header.setLabels(Arrays.asList(labelIDs));
+            header.setRecipients(new ArrayList<>());
+            byMailID.put(mailID, header);
+            for (int labelID : labelIDs)
+                byLabel.computeIfAbsent(labelID, k -> new ArrayList<>()).add(header);
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersCharacterIdMail200Ok>> getMailHeaders(Priority priority, int characterID,
+                                                                                         List<Integer> labels,
+                                                                                         Integer lastMailID) {
+            headerCalls.incrementAndGet();
+            if (failing) {
+                CompletableFuture<List<GetCharactersCharacterIdMail200Ok>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new ApiException(503, "Service unavailable"));
+                return failed;
+            }
+            List<GetCharactersCharacterIdMail200Ok> page = new ArrayList<>();
+            for (GetCharactersCharacterIdMail200Ok next : byLabel.getOrDefault(labels.get(0), Collections.emptyList()))
+                if (lastMailID == null || next.getMailId() < lastMailID) page.add(next);
+            page.sort((a, b) -> Integer.compare(b.getMailId(), a.getMailId()));
+            return CompletableFuture.completedFuture(page);
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersNames200Ok>> getCharacterNames(List<Long> ids) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        @Override
+        public CompletableFuture<List<GetCharactersCharacterIdMailLists200Ok>> getMailingLists(Priority priority, int characterID) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Numbers user labels in memory in place of the mailbox state log.
+     */
+    private static class LabelUidProvider implements EveMailUidProvider {
+        final Map<MailboxId, Map<Long, MessageUid>> uids = new HashMap<>();
+
+        @Override
+        public MessageUid nextUid(MailboxSession session, Mailbox mailbox) {
+            return nextUid(session, mailbox.getMailboxId());
+        }
+
+        @Override
+        public synchronized MessageUid nextUid(MailboxSession session, MailboxId mailboxId) {
+            return MessageUid.of(uids.computeIfAbsent(mailboxId, k -> new HashMap<>()).size() + 1L);
+        }
+
+        @Override
+        public synchronized Optional<MessageUid> lastUid(MailboxSession session, Mailbox mailbox) {
+            Map<Long, MessageUid> assigned = uids.get(mailbox.getMailboxId());
+            return assigned == null || assigned.isEmpty() ? Optional.<MessageUid>absent() : Optional.of(MessageUid.of(assigned.size()));
+        }
+
+        @Override
+        public synchronized MessageUid uidFor(MailboxSession session, MailboxId mailboxId, long mailID) {
+            Map<Long, MessageUid> assigned = uids.computeIfAbsent(mailboxId, k -> new HashMap<>());
+            return assigned.computeIfAbsent(mailID, k -> MessageUid.of(assigned.size() + 1L));
+        }
+
+        @Override
+        public void forget(MailboxSession session, MailboxId mailboxId, long mailID) {
+        }
+
+        @Override
+        public void sync() {
+        }
+    }
+
+    private FakeClient client;
+    private EveMailCachedMessageMapper mapper;
+    private SimpleMailbox inbox;
+    private SimpleMailbox custom;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new FakeClient();
+        EveAsyncClient.setInstance(client);
+        MailboxSession session = new SimpleMailboxSession(1L, CHARACTER_ID + "@evemail.orbital.enterprises", "",
+                                                          LoggerFactory.getLogger(getClass()), Collections.<Locale>emptyList(),
+                                                          '.', MailboxSession.SessionType.User);
+        mapper = new EveMailCachedMessageMapper(session, new MailIdUidProvider(new LabelUidProvider()), new ClockModSeqProvider());
+        inbox = new SimpleMailbox(new MailboxPath(null, session.getUser().getUserName(), "INBOX"), 1L);
+        inbox.setMailboxId(MailIdUidProvider.systemMailboxId(CHARACTER_ID, "INBOX"));
+        custom = new SimpleMailbox(new MailboxPath(null, session.getUser().getUserName(), "Custom"), 2L);
+        custom.setMailboxId(InMemoryId.of(2L));
+    }
+
+    private static void setSyncInterval(long interval) throws Exception {
+        Field field = InMemoryMailboxManager.class.getDeclaredField("syncInterval");
+        field.setAccessible(true);
+        field.setLong(null, interval);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        setSyncInterval(InMemoryMailboxManager.DEF_SYNC_INTERVAL);
+        EveAsyncClient.setInstance(null);
+        EveHeaderStore.evict(CHARACTER_ID);
+    }
+
+    @Test
+    public void testCountSyncsLabelOncePerInterval() throws Exception {
+        client.addMail(100, true, INBOX_LABEL);
+        client.addMail(101, false, INBOX_LABEL);
+        client.addMail(102, false, INBOX_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+
+        assertEquals(3L, mapper.countMessagesInMailbox(inbox));
+        int calls = client.headerCalls.get();
+        assertTrue(calls > 0);
+
+        // Within the sync interval the mapper serves from memory
+        assertEquals(3L, mapper.countMessagesInMailbox(inbox));
+        assertEquals(calls, client.headerCalls.get());
+    }
+
+    @Test
+    public void testUnseenQueriesSync() throws Exception {
+        client.addMail(200, true, INBOX_LABEL);
+        client.addMail(201, false, INBOX_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+
+        assertEquals(1L, mapper.countUnseenMessagesInMailbox(inbox));
+        assertTrue(client.headerCalls.get() > 0);
+        assertEquals(MessageUid.of(201L), mapper.findFirstUnseenMessageUid(inbox));
+    }
+
+    @Test
+    public void testFlagsAreKeptPerMailbox() throws Exception {
+        client.addMail(500, false, INBOX_LABEL, CUSTOM_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        mapper.addMailbox((InMemoryId) custom.getMailboxId(), CUSTOM_LABEL, "Custom");
+        assertEquals(1L, mapper.countUnseenMessagesInMailbox(inbox));
+        assertEquals(1L, mapper.countUnseenMessagesInMailbox(custom));
+
+        mapper.updateFlags(inbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), MessageManager.FlagsUpdateMode.ADD),
+                           MessageRange.all());
+        assertEquals(0L, mapper.countUnseenMessagesInMailbox(inbox));
+        assertEquals(1L, mapper.countUnseenMessagesInMailbox(custom));
+        assertTrue(mapper.findInMailbox(inbox, MessageRange.all(), MessageMapper.FetchType.Metadata, -1).next().isSeen());
+        assertFalse(mapper.findInMailbox(custom, MessageRange.all(), MessageMapper.FetchType.Metadata, -1).next().isSeen());
+    }
+
+    @Test
+    public void testViewsShareRenderedContent() throws Exception {
+        client.addMail(600, false, INBOX_LABEL, CUSTOM_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        mapper.addMailbox((InMemoryId) custom.getMailboxId(), CUSTOM_LABEL, "Custom");
+        EveMessage first = (EveMessage) mapper.findInMailbox(inbox, MessageRange.all(), MessageMapper.FetchType.Headers, -1).next();
+        first.getHeaderContent();
+
+        // A later fetch of the same mail, even under another label, reuses the rendered header
+        EveMessage second = (EveMessage) mapper.findInMailbox(custom, MessageRange.all(), MessageMapper.FetchType.Headers, -1).next();
+        assertNotSame(first, second);
+        assertSame(first.rendered, second.rendered);
+        assertNotNull(second.rendered.header);
+    }
+
+    @Test
+    public void testSyncFailureServesCachedMessages() throws Exception {
+        client.addMail(700, false, INBOX_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        assertEquals(1L, mapper.countMessagesInMailbox(inbox));
+
+        setSyncInterval(0L);
+        client.failing = true;
+        int calls = client.headerCalls.get();
+        assertEquals(1L, mapper.countMessagesInMailbox(inbox));
+        assertTrue(client.headerCalls.get() > calls);
+    }
+
+    @Test(expected = MailboxException.class)
+    public void testSyncFailureWithoutCacheThrows() throws Exception {
+        client.failing = true;
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        mapper.countMessagesInMailbox(inbox);
+    }
+
+    @Test
+    public void testUnlabelledMailboxIsNotSynced() throws Exception {
+        client.addMail(300, false, INBOX_LABEL);
+
+        assertEquals(0L, mapper.countMessagesInMailbox(inbox));
+        assertEquals(0, client.headerCalls.get());
+    }
+
+    @Test
+    public void testRemoveMailboxDropsMessages() throws Exception {
+        client.addMail(400, false, INBOX_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        assertEquals(1L, mapper.countMessagesInMailbox(inbox));
+
+        mapper.removeMailbox((InMemoryId) inbox.getMailboxId());
+        int calls = client.headerCalls.get();
+        assertEquals(0L, mapper.countMessagesInMailbox(inbox));
+        assertEquals(calls, client.headerCalls.get());
+    }
+
+    @Test
+    public void testSyncAppliesEveReadChanges() throws Exception {
+        client.addMail(600, false, INBOX_LABEL);
+        client.addMail(601, false, INBOX_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        assertEquals(2L, mapper.countUnseenMessagesInMailbox(inbox));
+
+        // Read 601 locally, then 600 in game
+        mapper.updateFlags(inbox, new FlagsUpdateCalculator(new Flags(Flags.Flag.SEEN), MessageManager.FlagsUpdateMode.ADD),
+                           MessageRange.one(MessageUid.of(601L)));
+        client.byMailID.get(600).setIsRead(true);
+        setSyncInterval(0L);
+
+        // EVE's change is picked up and the local one is kept
+        assertEquals(0L, mapper.countUnseenMessagesInMailbox(inbox));
+    }
+
+    @Test
+    public void testReAddUpdatesLabels() throws Exception {
+        client.addMail(700, false, INBOX_LABEL);
+        EveHeaderStore store = EveHeaderStore.forCharacter(CHARACTER_ID);
+        int row = store.add(client.byMailID.get(700));
+        assertArrayEquals(new int[]{INBOX_LABEL}, store.getLabels(row));
+
+        GetCharactersCharacterIdMail200Ok relabelled = client.byMailID.get(700);
+        relabelled.setLabels(Arrays.asList(INBOX_LABEL, CUSTOM_LABEL, CUSTOM_LABEL + 1));
+        assertEquals(row, store.add(relabelled));
+        assertArrayEquals(new int[]{INBOX_LABEL, CUSTOM_LABEL, CUSTOM_LABEL + 1}, store.getLabels(row));
+
+        relabelled.setLabels(Collections.singletonList(CUSTOM_LABEL));
+        assertEquals(row, store.add(relabelled));
+        assertArrayEquals(new int[]{CUSTOM_LABEL}, store.getLabels(row));
+    }
+
+    @Test
+    public void testReservedMailboxesUseMailIds() throws Exception {
+        client.addMail(800, false, INBOX_LABEL, CUSTOM_LABEL);
+        client.addMail(801, false, INBOX_LABEL, CUSTOM_LABEL);
+        mapper.addMailbox((InMemoryId) inbox.getMailboxId(), INBOX_LABEL, "Inbox");
+        mapper.addMailbox((InMemoryId) custom.getMailboxId(), CUSTOM_LABEL, "Custom");
+
+        // INBOX is numbered by mail ID, the user label by its own provider
+        assertEquals(MessageUid.of(800L), mapper.findFirstUnseenMessageUid(inbox));
+        assertEquals(MessageUid.of(1L), mapper.findFirstUnseenMessageUid(custom));
+        assertTrue(MailIdUidProvider.isSystemMailbox(inbox.getMailboxId()));
+        assertFalse(MailIdUidProvider.isSystemMailbox(custom.getMailboxId()));
+    }
+}
@@ -0,0 +1,87 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import enterprises.orbital.evemail.mailbox.InMemoryId;
+import enterprises.orbital.evemail.mailbox.InMemoryMessageId;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.store.mail.model.MailboxMessage;
+import org.apache.james.mailbox.store.mail.model.impl.PropertyBuilder;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailboxMessage;
+import org.junit.Test;
+
+import javax.mail.Flags;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MailboxMembershipTest {
+
+    private static MailboxMessage message(long uid, Flags flags) {
+        byte[] content = "Subject: test\r\n\r\nbody".getBytes();
+        SimpleMailboxMessage message = new SimpleMailboxMessage(InMemoryMessageId.of(uid), new Date(), content.length, 15,
+                                                                new SharedByteArrayInputStream(content), flags,
+                                                                new PropertyBuilder(), InMemoryId.of(1L));
+        message.setUid(MessageUid.of(uid));
+        return message;
+    }
+
+    @Test
+    public void testCounts() {
+        MailboxMembership membership = new MailboxMembership();
+        membership.put(message(1L, new Flags(Flags.Flag.SEEN)));
+        membership.put(message(2L, new Flags()));
+        membership.put(message(3L, new Flags(Flags.Flag.RECENT)));
+
+        assertEquals(3, membership.size());
+        assertEquals(2, membership.countUnseen());
+        assertEquals(MessageUid.of(2L), membership.firstUnseen());
+        assertEquals(Collections.singletonList(MessageUid.of(3L)), membership.recentUids());
+    }
+
+    @Test
+    public void testPutAgainReindexesFlags() {
+        MailboxMembership membership = new MailboxMembership();
+        membership.put(message(1L, new Flags(Flags.Flag.RECENT)));
+        membership.put(message(2L, new Flags()));
+
+        MailboxMessage replaced = message(1L, new Flags(Flags.Flag.SEEN));
+        membership.put(replaced);
+        assertEquals(2, membership.size());
+        assertEquals(1, membership.countUnseen());
+        assertEquals(MessageUid.of(2L), membership.firstUnseen());
+        assertEquals(Collections.emptyList(), membership.recentUids());
+        assertSame(replaced, membership.byUid().get(MessageUid.of(1L)));
+    }
+
+    @Test
+    public void testRemove() {
+        MailboxMembership membership = new MailboxMembership();
+        membership.put(message(1L, new Flags()));
+        membership.put(message(2L, new Flags(Flags.Flag.RECENT)));
+
+        membership.remove(MessageUid.of(1L));
+        assertNull(membership.remove(MessageUid.of(5L)));
+        assertEquals(1, membership.size());
+        assertEquals(1, membership.countUnseen());
+        assertEquals(MessageUid.of(2L), membership.firstUnseen());
+
+        membership.remove(MessageUid.of(2L));
+        assertEquals(0, membership.size());
+        assertEquals(0, membership.countUnseen());
+        assertNull(membership.firstUnseen());
+        assertEquals(Collections.emptyList(), membership.recentUids());
+    }
+
+    @Test
+    public void testOrderedByUid() {
+        MailboxMembership membership = new MailboxMembership();
+        for (long uid : new long[]{5L, 1L, 3L})
+            membership.put(message(uid, new Flags()));
+        assertEquals(Arrays.asList(MessageUid.of(1L), MessageUid.of(3L), MessageUid.of(5L)),
+                     Arrays.asList(membership.byUid().keySet().toArray()));
+    }
+}
@@ -0,0 +1,89 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.impl.SimpleMailbox;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxNameIndexTest {
+    private static final String USER = "90000001@evemail.orbital.enterprises";
+
+    private MailboxNameIndex index;
+
+    private void add(String user, String name) {
+        MailboxPath path = new MailboxPath(MailboxConstants.USER_NAMESPACE, user, name);
+        index.put(path, new SimpleMailbox(path, 1L));
+    }
+
+    private List<String> match(String pattern) {
+        List<String> names = new ArrayList<>();
+        for (Mailbox next : index.match(MailboxConstants.USER_NAMESPACE, USER, pattern)) names.add(next.getName());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Before
+    public void setUp() {
+        index = new MailboxNameIndex();
+        for (String name : Arrays.asList("INBOX", "Sent", "Trash", "Work", "Work.Projects", "Work.Projects.Old"))
+            add(USER, name);
+        add("90000002@evemail.orbital.enterprises", "Work.Other");
+    }
+
+    @Test
+    public void testLiteral() {
+        assertEquals(Collections.singletonList("Sent"), match("Sent"));
+        assertEquals(Collections.emptyList(), match("Sen"));
+    }
+
+    @Test
+    public void testWildcards() {
+        assertEquals(Arrays.asList("INBOX", "Sent", "Trash", "Work", "Work.Projects", "Work.Projects.Old"), match("*"));
+        assertEquals(Arrays.asList("Work.Projects", "Work.Projects.Old"), match("Work.%"));
+        assertEquals(Arrays.asList("Work.Projects", "Work.Projects.Old"), match("*Projects*"));
+        assertEquals(Collections.singletonList("Work.Projects.Old"), match("W*%*Old"));
+    }
+
+    @Test
+    public void testOwnersAreSeparate() {
+        assertEquals(Collections.emptyList(), match("Work.Other"));
+        assertTrue(index.hasPrefix(MailboxConstants.USER_NAMESPACE, "90000002@evemail.orbital.enterprises", "Work."));
+    }
+
+    @Test
+    public void testRemove() {
+        index.remove(new MailboxPath(MailboxConstants.USER_NAMESPACE, USER, "Work.Projects.Old"));
+        assertEquals(Collections.singletonList("Work.Projects"), match("Work.*"));
+        assertTrue(index.hasPrefix(MailboxConstants.USER_NAMESPACE, USER, "Work.Projects"));
+
+        index.remove(new MailboxPath(MailboxConstants.USER_NAMESPACE, USER, "Work.Projects"));
+        assertFalse(index.hasPrefix(MailboxConstants.USER_NAMESPACE, USER, "Work."));
+        assertTrue(index.hasPrefix(MailboxConstants.USER_NAMESPACE, USER, "Work"));
+
+        // Removing an absent mailbox changes nothing
+        index.remove(new MailboxPath(MailboxConstants.USER_NAMESPACE, USER, "Missing"));
+        assertEquals(4, match("*").size());
+    }
+
+    @Test
+    public void testReplace() {
+        MailboxPath path = new MailboxPath(MailboxConstants.USER_NAMESPACE, USER, "Sent");
+        SimpleMailbox replacement = new SimpleMailbox(path, 2L);
+        index.put(path, replacement);
+        List<Mailbox> found = index.match(MailboxConstants.USER_NAMESPACE, USER, "Sent");
+        assertEquals(1, found.size());
+        assertEquals(2L, found.get(0).getUidValidity());
+        assertEquals(6, match("*").size());
+    }
+}
@@ -0,0 +1,122 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxStateLogTest {
+    private static final int CHARACTER_ID = 90000001;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayKeepsMailboxesAndAssignments() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        MailboxStateLog.MailboxRecord inbox = state.mailbox(CHARACTER_ID, "INBOX");
+        MailboxStateLog.MailboxRecord work = state.mailbox(CHARACTER_ID, "Work");
+        long first = state.uidFor(inbox.getId(), 1000L);
+        long second = state.uidFor(inbox.getId(), 1001L);
+        state.rename(work.getId(), "Projects");
+        state.sync();
+
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        MailboxStateLog.MailboxRecord replayed = reopened.mailbox(CHARACTER_ID, "INBOX");
+        assertEquals(inbox.getId(), replayed.getId());
+        assertEquals(inbox.getUidValidity(), replayed.getUidValidity());
+        assertEquals(work.getId(), reopened.mailbox(CHARACTER_ID, "Projects").getId());
+        assertEquals(first, reopened.uidFor(inbox.getId(), 1000L));
+        assertEquals(second, reopened.uidFor(inbox.getId(), 1001L));
+        // New mailboxes don't reuse replayed IDs
+        assertTrue(reopened.mailbox(CHARACTER_ID, "New").getId() > work.getId());
+    }
+
+    @Test
+    public void testCountersResumeAfterLease() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        long id = state.mailbox(CHARACTER_ID, "INBOX").getId();
+        long uid = state.nextUid(id);
+        long modSeq = state.nextModSeq(id);
+
+        // Anything in the last lease may have been handed out, so counters skip past it
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        long resumedUid = reopened.nextUid(id);
+        long resumedModSeq = reopened.nextModSeq(id);
+        assertTrue(resumedUid > uid + 1);
+        assertTrue(resumedModSeq > modSeq + 1);
+        assertEquals(resumedUid, reopened.lastUid(id));
+        assertEquals(resumedModSeq, reopened.highestModSeq(id));
+    }
+
+    @Test
+    public void testForgottenMailGetsNewUid() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        long id = state.mailbox(CHARACTER_ID, "INBOX").getId();
+        long uid = state.uidFor(id, 1000L);
+        state.forget(id, 1000L);
+        state.sync();
+
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        assertTrue(reopened.uidFor(id, 1000L) > uid);
+    }
+
+    @Test
+    public void testDeletedMailboxGetsNewIdentity() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        MailboxStateLog.MailboxRecord work = state.register(CHARACTER_ID, "Work", 1234L);
+        state.uidFor(work.getId(), 1000L);
+        state.delete(work.getId());
+
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        assertNotEquals(work.getId(), reopened.mailbox(CHARACTER_ID, "Work").getId());
+        assertEquals(0L, reopened.lastUid(work.getId()));
+    }
+
+    @Test
+    public void testReplayCompactsLog() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        long id = state.mailbox(CHARACTER_ID, "INBOX").getId();
+        for (long mailID = 0; mailID < 1000L; mailID++) {
+            state.uidFor(id, mailID);
+            if (mailID > 0) state.forget(id, mailID);
+        }
+        state.sync();
+        File log = new File(dir, "mailbox.log");
+        long before = log.length();
+
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        assertTrue(log.length() < before / 10);
+        assertEquals(state.uidFor(id, 0L), reopened.uidFor(id, 0L));
+    }
+
+    @Test
+    public void testFailedCompactionKeepsLogWritable() throws Exception {
+        File dir = folder.getRoot();
+        MailboxStateLog state = new MailboxStateLog(dir);
+        long id = state.mailbox(CHARACTER_ID, "INBOX").getId();
+        // A directory in place of the scratch file makes every compaction fail
+        File blocked = new File(dir, "mailbox.log.tmp");
+        assertTrue(new File(blocked, "pin").mkdirs());
+        for (long mailID = 0; mailID < 60000L; mailID++) {
+            state.uidFor(id, mailID);
+            state.forget(id, mailID);
+        }
+        long uid = state.uidFor(id, 100000L);
+        state.sync();
+        assertTrue(new File(blocked, "pin").delete() && blocked.delete());
+
+        MailboxStateLog reopened = new MailboxStateLog(dir);
+        assertEquals(uid, reopened.uidFor(id, 100000L));
+    }
+}
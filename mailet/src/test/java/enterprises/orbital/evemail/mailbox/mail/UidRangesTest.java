@@ -0,0 +1,65 @@
+package enterprises.orbital.evemail.mailbox.mail;
+
+import com.google.common.collect.Lists;
+import org.apache.james.mailbox.MessageUid;
+import org.apache.james.mailbox.model.MessageRange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UidRangesTest {
+    private NavigableMap<MessageUid, Long> byUid;
+
+    @Before
+    public void setUp() {
+        byUid = new TreeMap<>();
+        for (long uid : new long[]{1L, 3L, 5L, 7L, 9L})
+            byUid.put(MessageUid.of(uid), uid);
+    }
+
+    @Test
+    public void testAll() {
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), Lists.newArrayList(UidRanges.iterator(byUid, MessageRange.all(), -1)));
+    }
+
+    @Test
+    public void testOne() {
+        assertEquals(Collections.singletonList(5L), Lists.newArrayList(UidRanges.iterator(byUid, MessageRange.one(MessageUid.of(5L)), 0)));
+        assertTrue(UidRanges.subMap(byUid, MessageRange.one(MessageUid.of(4L))).isEmpty());
+    }
+
+    @Test
+    public void testFrom() {
+        assertEquals(Arrays.asList(5L, 7L, 9L), Lists.newArrayList(UidRanges.iterator(byUid, MessageRange.from(MessageUid.of(4L)), -1)));
+    }
+
+    @Test
+    public void testRangeIsInclusive() {
+        assertEquals(Arrays.asList(3L, 5L, 7L),
+                     Lists.newArrayList(UidRanges.iterator(byUid, MessageRange.range(MessageUid.of(3L), MessageUid.of(7L)), -1)));
+    }
+
+    @Test
+    public void testRangePastEndIsEmpty() {
+        assertTrue(UidRanges.subMap(byUid, MessageRange.range(MessageUid.of(10L), MessageUid.of(20L))).isEmpty());
+    }
+
+    @Test
+    public void testLimit() {
+        assertEquals(Arrays.asList(1L, 3L), Lists.newArrayList(UidRanges.iterator(byUid, MessageRange.all(), 2)));
+    }
+
+    @Test
+    public void testViewIsBackedByMap() {
+        NavigableMap<MessageUid, Long> view = UidRanges.subMap(byUid, MessageRange.from(MessageUid.of(6L)));
+        byUid.put(MessageUid.of(8L), 8L);
+        assertEquals(Arrays.asList(7L, 8L, 9L), Lists.newArrayList(view.values()));
+    }
+}
@@ -0,0 +1,105 @@
+package enterprises.orbital.evemail.mailet;
+
+import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailMail;
+import enterprises.orbital.eve.esi.client.model.PostCharactersCharacterIdMailRecipient;
+import enterprises.orbital.evemail.esi.EveAsyncClient;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class EveMailOutboxTest {
+  private static final int CHARACTER_ID = 90000001;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Sends mail either never (holding it in the outbox) or successfully.
+   */
+  private static class FakeClient extends EveAsyncClient {
+    final boolean deliver;
+    final AtomicInteger attempted = new AtomicInteger();
+    final AtomicInteger sent = new AtomicInteger();
+
+    FakeClient(boolean deliver) {
+      super(null, null, "test", 0L);
+      this.deliver = deliver;
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendMail(int characterID, PostCharactersCharacterIdMailMail mail) {
+      attempted.incrementAndGet();
+      if (!deliver) return new CompletableFuture<>();
+      sent.incrementAndGet();
+      return CompletableFuture.completedFuture(1);
+    }
+  }
+
+  private static PostCharactersCharacterIdMailMail mail(String subject) {
+    PostCharactersCharacterIdMailMail mail = new PostCharactersCharacterIdMailMail();
+    mail.setSubject(subject);
+    mail.setBody("Body of " + subject);
+    PostCharactersCharacterIdMailRecipient recipient = new PostCharactersCharacterIdMailRecipient();
+    recipient.setRecipientId(90000002);
+    recipient.setRecipientType(PostCharactersCharacterIdMailRecipient.RecipientTypeEnum.CHARACTER);
+    mail.addRecipientsItem(recipient);
+    return mail;
+  }
+
+  private static void awaitEmpty(EveMailOutbox outbox) throws InterruptedException {
+    for (int i = 0; i < 500 && outbox.size() > 0; i++) Thread.sleep(10);
+    // Completions are journaled under the outbox lock, wait for the last one to finish writing
+    synchronized (outbox) {
+      assertEquals(0, outbox.size());
+    }
+  }
+
+  @After
+  public void tearDown() {
+    EveAsyncClient.setInstance(null);
+  }
+
+  @Test
+  public void testPendingMailIsReplayed() throws Exception {
+    File dir = folder.getRoot();
+    FakeClient held = new FakeClient(false);
+    EveAsyncClient.setInstance(held);
+    EveMailOutbox outbox = new EveMailOutbox(dir, null);
+    for (int i = 0; i < 3; i++)
+      outbox.enqueue(CHARACTER_ID, new MailAddress("sender@example.com"), mail("Mail " + i));
+    assertEquals(3, outbox.size());
+    // Wait until every worker of the first outbox is stuck on the held client before swapping it out
+    int workers = (int) Math.min(3L, EveMailOutbox.DEF_OUTBOX_THREADS);
+    for (int i = 0; i < 500 && held.attempted.get() < workers; i++) Thread.sleep(10);
+    assertEquals(workers, held.attempted.get());
+
+    // A restart resubmits everything still queued
+    FakeClient client = new FakeClient(true);
+    EveAsyncClient.setInstance(client);
+    EveMailOutbox reopened = new EveMailOutbox(dir, null);
+    awaitEmpty(reopened);
+    assertEquals(3, client.sent.get());
+  }
+
+  @Test
+  public void testDeliveredMailIsNotReplayed() throws Exception {
+    File dir = folder.getRoot();
+    FakeClient client = new FakeClient(true);
+    EveAsyncClient.setInstance(client);
+    EveMailOutbox outbox = new EveMailOutbox(dir, null);
+    outbox.enqueue(CHARACTER_ID, null, mail("Delivered"));
+    awaitEmpty(outbox);
+    assertEquals(1, client.sent.get());
+
+    EveAsyncClient.setInstance(new FakeClient(false));
+    assertEquals(0, new EveMailOutbox(dir, null).size());
+  }
+}